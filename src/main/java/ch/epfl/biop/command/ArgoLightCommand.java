@@ -2,8 +2,12 @@ package ch.epfl.biop.command;
 
 import ch.epfl.biop.processing.ArgoSlideLivePreview;
 import ch.epfl.biop.processing.Processing;
+import ch.epfl.biop.retrievers.ImageCache;
+import ch.epfl.biop.retrievers.LocalFolderWatcher;
 import ch.epfl.biop.retrievers.LocalRetriever;
+import ch.epfl.biop.retrievers.OMEROImageQuery;
 import ch.epfl.biop.retrievers.OMERORetriever;
+import ch.epfl.biop.retrievers.OMEROSessionPool;
 import ch.epfl.biop.retrievers.Retriever;
 import ch.epfl.biop.senders.LocalSender;
 import ch.epfl.biop.senders.OMEROSender;
@@ -89,6 +93,10 @@ public class ArgoLightCommand implements Command, Cancelable {
     private boolean isDefaultThresholdMethod;
     private boolean isDefaultParticleThresh;
     private boolean isDefaultRingRadius;
+    private boolean isBestFocusPlane;
+    private boolean isAllFrames;
+    private boolean isSharedGrid;
+    private int userMaxDownloads;
 
     private JDialog mainDialog;
     private JDialog settingsDialog;
@@ -105,6 +113,8 @@ public class ArgoLightCommand implements Command, Cancelable {
     final private String defaultThresholdMethod = "Li";
     final private double defaultParticleThresh = 5;
     final private double defaultRingRadius = 1.25;
+    final private int defaultMaxDownloads = 3;
+    final private int maxDownloadsUpperBound = 10;
     final private int sigmaUpperBound = 10;
     final private int particleThresholdUpperBound = 30;
     final private int ringRadiusUpperBound = 5;
@@ -125,8 +135,13 @@ public class ArgoLightCommand implements Command, Cancelable {
     final private String segmentationKey = "Segmentation method";
     final private String threshParticlesKey = "Particle size threshold";
     final private String ringRadiusKey = "Analyzed ring radius";
+    final private String bestFocusKey = "Best focus plane";
+    final private String allFramesKey = "All time points";
+    final private String sharedGridKey = "Shared grid detection";
+    final private String maxDownloadsKey = "Concurrent OMERO downloads";
 
     final private String folderName = "." + File.separator + "plugins" + File.separator + "BIOP";
+    final private static long OMERO_CACHE_SIZE = 5L * 1024 * 1024 * 1024; // 5 GB
     final private String generalSettingsFileName = "ArgoLight_default_params.csv";
     final private String processingFileName = "ArgoLight_default_processing_params.csv";
     final private String argoSlideFileName = "ArgoLight_default_argoslide_params.csv";
@@ -164,10 +179,13 @@ public class ArgoLightCommand implements Command, Cancelable {
      * @param saveHeatMaps
      * @param allImages
      * @param cleanTargetSelection
+     * @param watchFolder true to keep watching the local microscope folder and analyse new images as they are acquired
+     * @param omeroImageSelection selection of OMERO images (IDs, tag, acquisition dates) ; empty to process the whole dataset
      */
     private void runProcessing(boolean isOmeroRetriever, String omeroFolderName, boolean isMicOnProject,
                                String rootFolderPath, String microscope, String argoSlide, boolean isOmeroSender, String savingFolderPath,
-                               boolean saveHeatMaps, boolean allImages, boolean cleanTargetSelection){
+                               boolean saveHeatMaps, boolean allImages, boolean cleanTargetSelection, boolean watchFolder,
+                               String omeroImageSelection){
         boolean finalPopupMessage = true;
         if(!isOmeroRetriever && !new File(rootFolderPath).exists()){
             showWarningMessage("Root folder not accessible", "The root folder "+rootFolderPath+" does not exist");
@@ -192,9 +210,17 @@ public class ArgoLightCommand implements Command, Cancelable {
             return;
         }
 
+        OMEROImageQuery imageQuery = isOmeroRetriever ? OMEROImageQuery.parse(omeroImageSelection) : null;
+        if(isOmeroRetriever && imageQuery == null){
+            showWarningMessage("Image selection not valid", "<html>The image selection '"+omeroImageSelection+"' cannot be read." +
+                    "<p>Use image IDs (e.g. 123, 456), tag:name, days:7, from:2024-01-31 or to:2024-02-29, separated by ';'</html>");
+            IJLogger.info("ArgoLight Analysis Tool exited");
+            return;
+        }
+
+        // get the correct retriever
+        Retriever retriever = null;
         try {
-            // get the correct retriever
-            Retriever retriever;
             String rawTarget;
 
             if(isOmeroRetriever) {
@@ -205,7 +231,10 @@ public class ArgoLightCommand implements Command, Cancelable {
                     return;
                 }
 
-                retriever = new OMERORetriever(this.client, isMicOnProject);
+                // only download the planes used by the processing, several images at a time
+                OMEROSessionPool sessionPool = new OMEROSessionPool(this.client, userHost, Integer.parseInt(userPort), userMaxDownloads);
+                ImageCache imageCache = new ImageCache(new File(folderName, "omero_cache"), OMERO_CACHE_SIZE);
+                retriever = new OMERORetriever(this.client, isMicOnProject, true, isBestFocusPlane, isAllFrames, sessionPool, imageCache);
                 rawTarget = omeroFolderName;
             }
             else {
@@ -214,7 +243,9 @@ public class ArgoLightCommand implements Command, Cancelable {
             }
 
             // load images to process & set the cleaning
-            boolean imageLoaded = retriever.loadImages(rawTarget, microscope, allImages, argoSlide);
+            boolean imageLoaded = isOmeroRetriever ?
+                    ((OMERORetriever) retriever).loadImages(rawTarget, microscope, allImages, argoSlide, imageQuery) :
+                    retriever.loadImages(rawTarget, microscope, allImages, argoSlide);
             if(imageLoaded) {
                 int nImages = retriever.getNImages();
                 boolean cleanTarget = allImages && cleanTargetSelection;
@@ -228,23 +259,12 @@ public class ArgoLightCommand implements Command, Cancelable {
                     sender = new LocalSender(savingFolder, microscope, cleanTarget, isOmeroRetriever);
                 }
 
-                // get the current argoSlide parameters
-                List<String> argoParams = argoSlidesParameters.get(argoSlide);
-
                 // run analysis
                 if (nImages > 0) {
                     checkCanceled();
-                    Processing.run(retriever, saveHeatMaps, sender,
-                            isDefaultSigma ? defaultSigma : userSigma,
-                            isDefaultMedianRadius ? defaultMedianRadius : userMedianRadius,
-                            isDefaultThresholdMethod ? defaultThresholdMethod : userThresholdMethod,
-                            isDefaultParticleThresh ? defaultParticleThresh : userParticleThresh,
-                            isDefaultRingRadius ? defaultRingRadius : userRingRadius,
-                            argoSlide,
-                            Integer.parseInt(argoParams.get(argoSpacingPos)),
-                            Integer.parseInt(argoParams.get(argoFoVPos)),
-                            Integer.parseInt(argoParams.get(argoNRingsPos)),
-                            ArgoLightCommand.this);
+                    runAnalysis(retriever, sender, saveHeatMaps, argoSlide);
+                } else if (watchFolder && !isOmeroRetriever) {
+                    IJLogger.info("Microscope " + microscope + " does not contain any new images yet");
                 } else {
                     IJLogger.warn("Parent container : "+rawTarget + ", microscope " + microscope + " does not contain any images");
                     showWarningMessage("No Images", "<html> Parent container : "+rawTarget + ", microscope '" + microscope + "', does not contain any images." +
@@ -256,13 +276,23 @@ public class ArgoLightCommand implements Command, Cancelable {
                             "</ul>");
                     finalPopupMessage = false;
                 }
+
+                // analyse new images as soon as they are written in the microscope folder
+                if (watchFolder && !isOmeroRetriever)
+                    watchMicroscopeFolder((LocalRetriever) retriever, sender, saveHeatMaps, argoSlide);
             }else{
                 finalPopupMessage = false;
                 IJLogger.error("Images cannot be loaded from the parent container : "+rawTarget+", microscope "+microscope);
             }
+        } catch (CancellationException e){
+            throw e;
         } catch (Exception e){
             finalPopupMessage = false;
             IJLogger.error("Unexpected issue occurred", e);
+        } finally {
+            // release opened files and connections
+            if(retriever != null)
+                retriever.close();
         }
 
         if(finalPopupMessage) {
@@ -270,6 +300,67 @@ public class ArgoLightCommand implements Command, Cancelable {
         }
     }
 
+    /**
+     * Run the analysis on the images loaded by the retriever, with the current processing settings
+     *
+     * @param retriever retriever with loaded images
+     * @param sender sender where to save results
+     * @param saveHeatMaps
+     * @param argoSlide
+     */
+    private void runAnalysis(Retriever retriever, Sender sender, boolean saveHeatMaps, String argoSlide){
+        // get the current argoSlide parameters
+        List<String> argoParams = argoSlidesParameters.get(argoSlide);
+
+        Processing.run(retriever, saveHeatMaps, sender,
+                isDefaultSigma ? defaultSigma : userSigma,
+                isDefaultMedianRadius ? defaultMedianRadius : userMedianRadius,
+                isDefaultThresholdMethod ? defaultThresholdMethod : userThresholdMethod,
+                isDefaultParticleThresh ? defaultParticleThresh : userParticleThresh,
+                isDefaultRingRadius ? defaultRingRadius : userRingRadius,
+                argoSlide,
+                Integer.parseInt(argoParams.get(argoSpacingPos)),
+                Integer.parseInt(argoParams.get(argoFoVPos)),
+                Integer.parseInt(argoParams.get(argoNRingsPos)),
+                isBestFocusPlane,
+                isAllFrames,
+                isSharedGrid,
+                ArgoLightCommand.this);
+    }
+
+    /**
+     * Watch the microscope folder and analyse each new image once it is completely written, until the
+     * processing is aborted.
+     *
+     * @param retriever local retriever with loaded images
+     * @param sender sender where to save results
+     * @param saveHeatMaps
+     * @param argoSlide
+     * @throws IOException if the folder cannot be watched
+     */
+    private void watchMicroscopeFolder(LocalRetriever retriever, Sender sender, boolean saveHeatMaps, String argoSlide)
+            throws IOException {
+        LocalFolderWatcher watcher = new LocalFolderWatcher(new File(retriever.getMicroscopeTarget()));
+        try {
+            while (true) {
+                checkCanceled();
+                List<File> newFiles = watcher.pollCompletedFiles();
+                if (newFiles.isEmpty())
+                    continue;
+
+                retriever.loadNewFiles(newFiles);
+                if (retriever.getNImages() > 0) {
+                    IJLogger.info("Watch folder", retriever.getNImages() + " new image(s) to analyse");
+                    runAnalysis(retriever, sender, saveHeatMaps, argoSlide);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new CancellationException(cancelReason);
+        } finally {
+            watcher.close();
+        }
+    }
+
     private boolean connectToOmero(Client client, String username, char[] password){
         try {
             client.connect(userHost, Integer.parseInt(userPort), username, password);
@@ -360,6 +451,16 @@ public class ArgoLightCommand implements Command, Cancelable {
         omeroDatasets.forEach(cbDataset::addItem);
         cbDataset.setVisible(false);
 
+        // optional selection of OMERO images
+        JLabel labImageSelection = new JLabel("Images");
+        labImageSelection.setFont(stdFont);
+        JTextField tfImageSelection = new JTextField();
+        tfImageSelection.setFont(stdFont);
+        tfImageSelection.setColumns(15);
+        tfImageSelection.setToolTipText("<html>Leave empty to process the whole dataset, or select images with<p>" +
+                "image IDs (e.g. 123, 456), tag:name, days:7, from:2024-01-31, to:2024-02-29, separated by ';'</html>");
+        tfImageSelection.setEnabled(false);
+
         JLabel labMicroscopeFolder = new JLabel("Microscopes folder on");
         labMicroscopeFolder.setFont(stdFont);
 
@@ -484,6 +585,12 @@ public class ArgoLightCommand implements Command, Cancelable {
         });
         chkAllImages.setEnabled(false);
 
+        // checkbox to keep analysing new local images as they are acquired
+        JCheckBox chkWatchFolder = new JCheckBox("Watch folder for new images");
+        chkWatchFolder.setSelected(false);
+        chkWatchFolder.setFont(stdFont);
+        chkWatchFolder.setEnabled(false);
+
 
         // Radio button to choose local retriever
         ButtonGroup omeroMicroscopeFolderChoice = new ButtonGroup();
@@ -594,6 +701,8 @@ public class ArgoLightCommand implements Command, Cancelable {
             bArgoSlideSettings.setEnabled(!rbOmeroRetriever.isSelected() || this.client.isConnected());
             chkSaveHeatMap.setEnabled(!rbOmeroRetriever.isSelected() || this.client.isConnected());
             chkAllImages.setEnabled(!rbOmeroRetriever.isSelected() || this.client.isConnected());
+            chkWatchFolder.setEnabled(!rbOmeroRetriever.isSelected());
+            tfImageSelection.setEnabled(rbOmeroRetriever.isSelected() && this.client.isConnected());
             rbOmeroSender.setEnabled(!rbOmeroRetriever.isSelected() || this.client.isConnected());
             rbLocalSender.setEnabled(!rbOmeroRetriever.isSelected() || this.client.isConnected());
             bLivePreview.setEnabled(!rbOmeroRetriever.isSelected() || this.client.isConnected());
@@ -638,6 +747,8 @@ public class ArgoLightCommand implements Command, Cancelable {
             bArgoSlideSettings.setEnabled(rbLocalRetriever.isSelected());
             chkSaveHeatMap.setEnabled(rbLocalRetriever.isSelected());
             chkAllImages.setEnabled(rbLocalRetriever.isSelected());
+            chkWatchFolder.setEnabled(rbLocalRetriever.isSelected());
+            tfImageSelection.setEnabled(!rbLocalRetriever.isSelected() && this.client.isConnected());
             rbLocalSender.setEnabled(rbLocalRetriever.isSelected());
             bLivePreview.setEnabled(rbLocalRetriever.isSelected());
             cbDataset.setVisible(!rbLocalRetriever.isSelected());
@@ -730,6 +841,7 @@ public class ArgoLightCommand implements Command, Cancelable {
             bLivePreview.setEnabled(enableButton);
             chkSaveHeatMap.setEnabled(enableButton);
             chkAllImages.setEnabled(enableButton);
+            tfImageSelection.setEnabled(enableButton);
             rbOmeroSender.setEnabled(enableButton);
             rbLocalSender.setEnabled(enableButton);
             tfUsername.setEnabled(!enableButton);
@@ -771,6 +883,8 @@ public class ArgoLightCommand implements Command, Cancelable {
             bLivePreview.setEnabled(false);
             chkSaveHeatMap.setEnabled(false);
             chkAllImages.setEnabled(false);
+            chkWatchFolder.setEnabled(false);
+            tfImageSelection.setEnabled(false);
             rbOmeroSender.setEnabled(false);
             rbLocalSender.setEnabled(false);
             rbOmeroRetriever.setEnabled(false);
@@ -804,7 +918,9 @@ public class ArgoLightCommand implements Command, Cancelable {
                             tfSavingFolder.getText(),
                             chkSaveHeatMap.isSelected(),
                             chkAllImages.isSelected(),
-                            chkRemovePreviousRun.isSelected());
+                            chkRemovePreviousRun.isSelected(),
+                            rbLocalRetriever.isSelected() && chkWatchFolder.isSelected(),
+                            tfImageSelection.getText());
                 } catch (CancellationException e1) {
                     IJLogger.warn("Processing stopped by user.");
                 }
@@ -817,6 +933,8 @@ public class ArgoLightCommand implements Command, Cancelable {
                     bLivePreview.setEnabled(true);
                     chkSaveHeatMap.setEnabled(true);
                     chkAllImages.setEnabled(true);
+                    chkWatchFolder.setEnabled(rbLocalRetriever.isSelected());
+                    tfImageSelection.setEnabled(rbOmeroRetriever.isSelected() && this.client.isConnected());
                     rbOmeroSender.setEnabled(true);
                     rbLocalSender.setEnabled(true);
                     rbOmeroRetriever.setEnabled(true);
@@ -955,6 +1073,14 @@ public class ArgoLightCommand implements Command, Cancelable {
         constraints.gridy = omeroRetrieverRow++;
         omeroPane.add(cbDataset, constraints);
 
+        constraints.gridx = 0;
+        constraints.gridy = omeroRetrieverRow;
+        omeroPane.add(labImageSelection, constraints);
+
+        constraints.gridx = 1;
+        constraints.gridy = omeroRetrieverRow++;
+        omeroPane.add(tfImageSelection, constraints);
+
         constraints.gridwidth = 4; // span two rows
         constraints.gridx = 0;
         constraints.gridy = omeroRetrieverRow++;
@@ -1035,6 +1161,12 @@ public class ArgoLightCommand implements Command, Cancelable {
         omeroPane.add(chkRemovePreviousRun, constraints);
         constraints.gridwidth = 1; // set it back
 
+        constraints.gridwidth = 2; // span two rows
+        constraints.gridx = 0;
+        constraints.gridy = omeroRetrieverRow++;
+        omeroPane.add(chkWatchFolder, constraints);
+        constraints.gridwidth = 1; // set it back
+
         constraints.gridwidth = 4; // span two rows
         constraints.gridx = 0;
         constraints.gridy = omeroRetrieverRow++;
@@ -1562,6 +1694,28 @@ public class ArgoLightCommand implements Command, Cancelable {
             spRingRadius.setEnabled(!chkRingRadius.isSelected());
         });
 
+        // checkbox to analyse the sharpest z-plane of z-stacks
+        JCheckBox chkBestFocus = new JCheckBox("Analyse the best focus plane of z-stacks");
+        chkBestFocus.setSelected(isBestFocusPlane);
+        chkBestFocus.setFont(stdFont);
+
+        // checkbox to analyse all time points of time-lapse images
+        JCheckBox chkAllFrames = new JCheckBox("Analyse all time points of time-lapse images");
+        chkAllFrames.setSelected(isAllFrames);
+        chkAllFrames.setFont(stdFont);
+
+        // checkbox to detect the grid once and refine it on other channels
+        JCheckBox chkSharedGrid = new JCheckBox("Detect the grid on the first channel only");
+        chkSharedGrid.setSelected(isSharedGrid);
+        chkSharedGrid.setFont(stdFont);
+
+        // number of OMERO images downloaded at the same time
+        JLabel labMaxDownloads = new JLabel("Concurrent OMERO downloads");
+        labMaxDownloads.setFont(stdFont);
+        SpinnerModel spModelMaxDownloads = new SpinnerNumberModel(userMaxDownloads,1,maxDownloadsUpperBound,1);
+        JSpinner spMaxDownloads = new JSpinner(spModelMaxDownloads);
+        spMaxDownloads.setFont(stdFont);
+
         // checkbox to set the default argoSlide
         JCheckBox chkUseOnlyOnce = new JCheckBox("Use only once");
         chkUseOnlyOnce.setSelected(false);
@@ -1639,6 +1793,28 @@ public class ArgoLightCommand implements Command, Cancelable {
         constraints.gridy = settingsRow++;
         settingsPane.add(spRingRadius, constraints);
 
+        constraints.gridx = 0;
+        constraints.gridy = settingsRow++;
+        constraints.gridwidth = 3;
+        settingsPane.add(chkBestFocus, constraints);
+
+        constraints.gridx = 0;
+        constraints.gridy = settingsRow++;
+        settingsPane.add(chkAllFrames, constraints);
+
+        constraints.gridx = 0;
+        constraints.gridy = settingsRow++;
+        settingsPane.add(chkSharedGrid, constraints);
+        constraints.gridwidth = 1;
+
+        constraints.gridx = 0;
+        constraints.gridy = settingsRow;
+        settingsPane.add(labMaxDownloads, constraints);
+
+        constraints.gridx = 2;
+        constraints.gridy = settingsRow++;
+        settingsPane.add(spMaxDownloads, constraints);
+
         constraints.gridx = 0;
         constraints.gridy = settingsRow;
         settingsPane.add(chkUseOnlyOnce, constraints);
@@ -1669,6 +1845,10 @@ public class ArgoLightCommand implements Command, Cancelable {
             userThresholdMethod = (String)cbSegmentation.getSelectedItem();
             userParticleThresh = (double)spThreshParticles.getValue();
             userRingRadius = (double)spRingRadius.getValue();
+            isBestFocusPlane = chkBestFocus.isSelected();
+            isAllFrames = chkAllFrames.isSelected();
+            isSharedGrid = chkSharedGrid.isSelected();
+            userMaxDownloads = (int)spMaxDownloads.getValue();
 
             if(!chkUseOnlyOnce.getModel().isSelected()) {
                 saveUserDefinedProcessingParams(isDefaultSigma,
@@ -1680,7 +1860,11 @@ public class ArgoLightCommand implements Command, Cancelable {
                         userMedianRadius,
                         userThresholdMethod,
                         userParticleThresh,
-                        userRingRadius);
+                        userRingRadius,
+                        isBestFocusPlane,
+                        isAllFrames,
+                        isSharedGrid,
+                        userMaxDownloads);
             }
         }
     }
@@ -1924,7 +2108,10 @@ public class ArgoLightCommand implements Command, Cancelable {
                     // read the image as ImagePlus
                     long imgId = Long.parseLong(idString);
                     ImageWrapper image = this.client.getImage(imgId);
-                    ImagePlus imp = image.toImagePlus(this.client);
+                    // only download the first plane
+                    int[] firstPlane = {0, 0};
+                    ImagePlus imp = image.toImagePlus(this.client, new int[]{0, image.getPixels().getSizeX() - 1},
+                            new int[]{0, image.getPixels().getSizeY() - 1}, firstPlane, firstPlane, firstPlane);
 
                     // extract the first channel
                     ImagePlus channel = IJ.createHyperStack(imp.getTitle(), imp.getWidth(), imp.getHeight(), 1, 1, 1, imp.getBitDepth());
@@ -1953,7 +2140,7 @@ public class ArgoLightCommand implements Command, Cancelable {
                         if(images == null)
                             showErrorMessage("Local image", "Cannot read image "+imgPath);
                         else {
-                            options.setVirtual(false);
+                            // keep the virtual mode : only the first plane is decoded
                             options.setOpenAllSeries(false);
                             if(images.length > 1) {
                                 int serie = createSelectSerieGui(images.length);
@@ -2184,7 +2371,11 @@ public class ArgoLightCommand implements Command, Cancelable {
                             userMedianRadius,
                             userThresholdMethod,
                             userParticleThresh,
-                            userRingRadius);
+                            userRingRadius,
+                            isBestFocusPlane,
+                            isAllFrames,
+                            isSharedGrid,
+                            userMaxDownloads);
                 }
             }
         }
@@ -2292,6 +2483,44 @@ public class ArgoLightCommand implements Command, Cancelable {
         val = checkAndSetValidityOfReadMetric(defaultParams, ringRadiusKey, defaultRingRadius, ringRadiusUpperBound);
         isDefaultRingRadius = val > 0;
         userRingRadius = Math.abs(val);
+
+        isBestFocusPlane = readBooleanParam(defaultParams, bestFocusKey);
+        isAllFrames = readBooleanParam(defaultParams, allFramesKey);
+        isSharedGrid = readBooleanParam(defaultParams, sharedGridKey);
+        userMaxDownloads = readIntParam(defaultParams, maxDownloadsKey, defaultMaxDownloads, maxDownloadsUpperBound);
+    }
+
+    /**
+     * Read an integer processing option
+     *
+     * @param params list of read parameters
+     * @param key option to read
+     * @param defaultVal value if the option is not defined or not valid
+     * @param upperBound maximum allowable value for the option
+     * @return the value of the option, between 1 and upperBound
+     */
+    private int readIntParam(Map<String, List<String>> params, String key, int defaultVal, int upperBound){
+        if(params.containsKey(key) && !params.get(key).isEmpty()) {
+            try {
+                return Math.max(1, Math.min(upperBound, Integer.parseInt(params.get(key).get(0).trim())));
+            } catch (NumberFormatException e) {
+                IJLogger.warn("Read default parameters", "The value of '" + key + "' is not an integer ; " + defaultVal + " is used instead");
+            }
+        }
+        return defaultVal;
+    }
+
+    /**
+     * Read an ON/OFF processing option
+     *
+     * @param params list of read parameters
+     * @param key option to read
+     * @return the value of the option ; false if it is not defined
+     */
+    private boolean readBooleanParam(Map<String, List<String>> params, String key){
+        if(params.containsKey(key) && !params.get(key).isEmpty())
+            return Boolean.parseBoolean(params.get(key).get(0));
+        return false;
     }
 
     /**
@@ -2541,11 +2770,18 @@ public class ArgoLightCommand implements Command, Cancelable {
      * @param thresholdingMethod
      * @param particleThreshold
      * @param ringRadius
+     * @param isBestFocusPlane
+     * @param isAllFrames
+     * @param isSharedGrid
+     * @param maxDownloads
      */
     private void saveUserDefinedProcessingParams(boolean isDefaultSigma, boolean isDefaultMedian, boolean isDefaultSegMed,
                                                  boolean isDefaultParticleThresh, boolean isDefaultRingRadius, double sigma,
                                                  double median, String thresholdingMethod, double particleThreshold,
-                                                 double ringRadius) {
+                                                 double ringRadius, boolean isBestFocusPlane,
+                                                 boolean isAllFrames,
+                                                 boolean isSharedGrid,
+                                                 int maxDownloads) {
         File directory = new File(folderName);
 
         if(!directory.exists())
@@ -2560,6 +2796,10 @@ public class ArgoLightCommand implements Command, Cancelable {
             buffer.write(segmentationKey+","+ isDefaultSegMed+","+thresholdingMethod + "\n");
             buffer.write(threshParticlesKey+","+ isDefaultParticleThresh+","+particleThreshold + "\n");
             buffer.write(ringRadiusKey+","+ isDefaultRingRadius+","+ringRadius + "\n");
+            buffer.write(bestFocusKey+","+ isBestFocusPlane + "\n");
+            buffer.write(allFramesKey+","+ isAllFrames + "\n");
+            buffer.write(sharedGridKey+","+ isSharedGrid + "\n");
+            buffer.write(maxDownloadsKey+","+ maxDownloads + "\n");
 
             // close the file
             buffer.close();
@@ -1,12 +1,14 @@
 package ch.epfl.biop.image;
 
 import ch.epfl.biop.utils.IJLogger;
+import ch.epfl.biop.utils.MetricStatistics;
 import ch.epfl.biop.utils.Tools;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.ImageStatistics;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -26,6 +28,7 @@ public class ImageChannel {
     private List<Roi> idealGridRings = new ArrayList<>();
     private double rotationAngle;
     private Map<String, String> keyValues = new TreeMap<>();
+    private Map<String, List<Double>> timeSeries = new LinkedHashMap<>();
     private Roi centerCross;
 
     public ImageChannel(int id, int width, int height, double pixelSize){
@@ -90,6 +93,14 @@ public class ImageChannel {
         this.keyValues.put(key, value);
     }
 
+    /**
+     * add the metrics measured on one time point
+     * @param metrics metric name and value
+     */
+    public void addTimePoint(Map<String, Double> metrics){
+        metrics.forEach((metric, value) -> this.timeSeries.computeIfAbsent(metric, k -> new ArrayList<>()).add(value));
+    }
+
     /**
      * set the ROI central cross
      * @param cross
@@ -126,6 +137,11 @@ public class ImageChannel {
      */
     public Map<String,String> getKeyValues(){ return this.keyValues; }
 
+    /**
+     * @return the metrics measured on each time point, as columns (metric;values)
+     */
+    public Map<String, List<Double>> getTimeSeries(){ return this.timeSeries; }
+
     /**
      * @return the list of detected grid rings ROIs
      */
@@ -188,44 +204,46 @@ public class ImageChannel {
         IJLogger.info("Channel "+this.channelId, "Vertical cross shit :"+(crossStats.yCentroid - this.imageHeight/2));
 
         // get field distortion summary
-        double[] fieldDistortionStats = Tools.computeStatistics(this.ringsFieldDistortion);
-        channelSummaryMap.put("Field_Distortion_avg__um", this.ringsFieldDistortion.isEmpty() ? -1 : fieldDistortionStats[0]);
-        channelSummaryMap.put("Field_Distortion_std__um", this.ringsFieldDistortion.isEmpty() ? -1 : fieldDistortionStats[1]);
-        channelSummaryMap.put("Field_Distortion_min__um", this.ringsFieldDistortion.isEmpty() ? -1 : fieldDistortionStats[2]);
-        channelSummaryMap.put("Field_Distortion_max__um", this.ringsFieldDistortion.isEmpty() ? -1 : fieldDistortionStats[3]);
-
-        IJLogger.info("Channel "+this.channelId, "Field distortion (avg, std, min, max) um :"
-                +fieldDistortionStats[0] +", "
-                +fieldDistortionStats[1] +", "
-                +fieldDistortionStats[2] +", "
-                +fieldDistortionStats[3] +", ");
+        addMetricSummary(channelSummaryMap, "Field_Distortion", "__um", "Field distortion", " um", this.ringsFieldDistortion);
 
         // get field uniformity summary
-        double[] fieldUniformityStats = Tools.computeStatistics(this.ringsFieldUniformity);
-        channelSummaryMap.put("Field_Uniformity_avg", this.ringsFieldUniformity.isEmpty() ? -1 : fieldUniformityStats[0]);
-        channelSummaryMap.put("Field_Uniformity_std", this.ringsFieldUniformity.isEmpty() ? -1 : fieldUniformityStats[1]);
-        channelSummaryMap.put("Field_Uniformity_min", this.ringsFieldUniformity.isEmpty() ? -1: fieldUniformityStats[2]);
-        channelSummaryMap.put("Field_Uniformity_max", this.ringsFieldUniformity.isEmpty() ? -1 : fieldUniformityStats[3]);
-
-        IJLogger.info("Channel "+this.channelId, "Field uniformity (avg, std, min, max) um :"
-                +fieldUniformityStats[0] +", "
-                +fieldUniformityStats[1] +", "
-                +fieldUniformityStats[2] +", "
-                +fieldUniformityStats[3] +", ");
+        addMetricSummary(channelSummaryMap, "Field_Uniformity", "", "Field uniformity", "", this.ringsFieldUniformity);
 
         // get FWHM summary
-        double[] fwhmStats = Tools.computeStatistics(this.ringsFWHM);
-        channelSummaryMap.put("Field_FWHM_avg__um", this.ringsFWHM.isEmpty() ? -1 : fwhmStats[0]);
-        channelSummaryMap.put("Field_FWHM_std__um", this.ringsFWHM.isEmpty() ? -1: fwhmStats[1]);
-        channelSummaryMap.put("Field_FWHM_min__um", this.ringsFWHM.isEmpty() ? -1 : fwhmStats[2]);
-        channelSummaryMap.put("Field_FWHM_max__um", this.ringsFWHM.isEmpty() ? -1 : fwhmStats[3]);
-
-        IJLogger.info("Channel "+this.channelId, "FWHM (avg, std, min, max) um :"
-                +fwhmStats[0] +", "
-                +fwhmStats[1] +", "
-                +fwhmStats[2] +", "
-                +fwhmStats[3] +", ");
+        addMetricSummary(channelSummaryMap, "Field_FWHM", "__um", "FWHM", " um", this.ringsFWHM);
 
         return channelSummaryMap;
     }
+
+    /**
+     * add the statistics of one metric to the channel summary. Metrics that are not computed are set to -1
+     *
+     * @param summaryMap channel summary
+     * @param key metric name in the summary
+     * @param unit unit suffix of the summary keys
+     * @param logName metric name in the logs
+     * @param logUnit unit in the logs
+     * @param values metric values for each ring
+     */
+    private void addMetricSummary(Map<String, Double> summaryMap, String key, String unit, String logName,
+                                  String logUnit, List<Double> values){
+        MetricStatistics stats = MetricStatistics.of(values);
+        boolean isEmpty = values.isEmpty();
+        summaryMap.put(key + "_avg" + unit, isEmpty ? -1 : stats.getMean());
+        summaryMap.put(key + "_std" + unit, isEmpty ? -1 : stats.getStd());
+        summaryMap.put(key + "_min" + unit, isEmpty ? -1 : stats.getMin());
+        summaryMap.put(key + "_max" + unit, isEmpty ? -1 : stats.getMax());
+        summaryMap.put(key + "_median" + unit, isEmpty ? -1 : stats.getMedian());
+        summaryMap.put(key + "_p05" + unit, isEmpty ? -1 : stats.getQuantile(0.05));
+        summaryMap.put(key + "_p95" + unit, isEmpty ? -1 : stats.getQuantile(0.95));
+
+        IJLogger.info("Channel "+this.channelId, logName + " (avg, std, min, max, median, p05, p95)" + logUnit + " :"
+                +stats.getMean() +", "
+                +stats.getStd() +", "
+                +stats.getMin() +", "
+                +stats.getMax() +", "
+                +stats.getMedian() +", "
+                +stats.getQuantile(0.05) +", "
+                +stats.getQuantile(0.95));
+    }
 }
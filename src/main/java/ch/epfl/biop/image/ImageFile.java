@@ -21,6 +21,11 @@ import java.util.regex.Pattern;
  */
 public class ImageFile {
 
+    /**
+     * regex pattern for the name of a fileset container (i.e. without the series name)
+     */
+    final private static Pattern CONTAINER_PATTERN = Pattern.compile("(?<microscope>[^_]*)_(?<argoslide>[^_]*)_(?<pattern>[^_]*)_d(?<date>[\\d]*)_o(?<objective>[a-zA-Z0-9]*?)_(?<immersion>[^_]*?)\\.(?<extension>[\\w]*)");
+
     /**
      * regex pattern for image name, depending on the file format
      */
@@ -226,6 +231,28 @@ public class ImageFile {
         }
     }
 
+    /**
+     * Check, from the image name only, if the image follows one of the naming patterns and can be processed.
+     *
+     * @param imgName
+     * @return true if metadata can be extracted from the image name
+     */
+    public static boolean isNameValid(String imgName){
+        Optional<FILETYPE> filePattern = Arrays.stream(FILETYPE.values()).filter(ft -> ft.matchesType(imgName)).findFirst();
+        return filePattern.isPresent() && filePattern.get().pattern.matcher(imgName).find();
+    }
+
+    /**
+     * Check, from the file name only, if the file can contain images to process : either a single image following
+     * one of the naming patterns, or a fileset container whose series are named 'FoV_serie'.
+     *
+     * @param fileName
+     * @return true if the file has to be opened
+     */
+    public static boolean isFileNameValid(String fileName){
+        return isNameValid(fileName) || CONTAINER_PATTERN.matcher(fileName).matches();
+    }
+
     /**
      * remove the extension from an image name
      *
@@ -280,11 +307,9 @@ public class ImageFile {
             List<Roi> rois = this.channels.get(0).getGridRings();
             for(int i = 0; i < this.channels.size()-1; i++){
                 for(int j = i+1; j < this.channels.size(); j++){
-                    // get the two images
-                    this.image.setPosition(i+1,1,1);
-                    ImagePlus ch1 = new ImagePlus("ch"+i, this.image.getProcessor());
-                    this.image.setPosition(j+1,1,1);
-                    ImagePlus ch2 = new ImagePlus("ch"+j, this.image.getProcessor());
+                    // get the two images, as views on the stack planes (no pixel copy)
+                    ImagePlus ch1 = new ImagePlus("ch"+i, this.image.getStack().getProcessor(this.image.getStackIndex(i+1,1,1)));
+                    ImagePlus ch2 = new ImagePlus("ch"+j, this.image.getStack().getProcessor(this.image.getStackIndex(j+1,1,1)));
 
                     // compute Pearson Correlation Coefficient
                     pccValues.add(Tools.computePCC(ch1, ch2, rois));
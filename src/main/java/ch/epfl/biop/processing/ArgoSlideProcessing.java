@@ -65,10 +65,14 @@ public class ArgoSlideProcessing {
      * @param argoSpacing distance between two rings in the grid in um
      * @param argoFOV FoV of the pattern B of the ArgoSlide in um
      * @param argoNPoints number of rings in the same line
+     * @param useBestFocusPlane true to analyse the sharpest z-plane of each channel instead of the middle one
+     * @param analyseAllFrames true to compute the metrics on every frame of time-lapse images
+     * @param useSharedGrid true to detect the grid on the first channel only and refine it on the other channels
      */
     public static void run(ImageFile imageFile, double userSigma, double userMedianRadius, String userThresholdingMethod,
                            double userParticleThreshold, double userRingRadius, String argoSlide, int argoSpacing,
-                           int argoFOV, int argoNPoints, ArgoLightCommand argoLightCommand){
+                           int argoFOV, int argoNPoints, boolean useBestFocusPlane, boolean analyseAllFrames,
+                           boolean useSharedGrid, ArgoLightCommand argoLightCommand){
 
         final ImagePlus imp = imageFile.getImage();
         // pixel size of the image
@@ -108,9 +112,18 @@ public class ArgoSlideProcessing {
         IJLogger.info("Detection parameters","Median radius : "+medianRadius + " pix");
         IJLogger.info("Detection parameters","Particle threshold : "+particleThreshold + " pix");
 
+        if(useSharedGrid && NChannels > 1) {
+            imageFile.addKeyValue("Grid_reference_channel", "0");
+            IJLogger.info("Detection parameters","Grid detected on channel 0 and refined on other channels");
+        }
+
         RoiManager roiManager = RoiManager.getRoiManager();
         argoLightCommand.checkCanceled();
 
+        // grid fully detected on the reference channel
+        Roi referenceCrossRoi = null;
+        List<Point2D> referenceGridPoints = new ArrayList<>();
+
         for(int c = 0; c < NChannels; c++){
             // reset all windows
             IJ.run("Close All", "");
@@ -119,19 +132,54 @@ public class ArgoSlideProcessing {
 
             ImageChannel imageChannel = new ImageChannel(c, imp.getWidth(), imp.getHeight(), pixelSizeImage);
 
-            // extract the current channel
-            ImagePlus channel = IJ.createHyperStack(imp.getTitle() + "_ch" + c, imp.getWidth(), imp.getHeight(), 1, 1, 1, imp.getBitDepth());
-            imp.setPosition(c+1,(int)((imp.getNSlices() + 1)/2),(int)((imp.getNFrames() + 1)/2));
-            channel.setProcessor(imp.getProcessor());
+            // choose the z-plane to analyse
+            int frame = (int)((imp.getNFrames() + 1)/2);
+            int zPlane = (int)((imp.getNSlices() + 1)/2);
+            String downloadedFocusPlane = imp.getProp(Tools.FOCUS_PLANE_PROPERTY + c);
+            if(useBestFocusPlane && imp.getNSlices() > 1){
+                zPlane = Processing.getBestFocusSlice(imp, c+1, frame);
+                imageChannel.addKeyValue("ch"+c+"_Focus_plane", String.valueOf(zPlane));
+                IJLogger.info("Channel "+c,"Best focus plane : z = " + zPlane);
+            } else if(useBestFocusPlane && downloadedFocusPlane != null){
+                // the best focus plane has been selected while downloading ; only this plane is in the image
+                imageChannel.addKeyValue("ch"+c+"_Focus_plane", downloadedFocusPlane);
+                IJLogger.info("Channel "+c,"Best focus plane : z = " + downloadedFocusPlane);
+            }
+
+            // extract the current channel, as a view on the stack plane (no pixel copy)
+            int planeIndex = imp.getStackIndex(c+1, zPlane, frame);
+            ImagePlus channel = new ImagePlus(imp.getTitle() + "_ch" + c, imp.getStack().getProcessor(planeIndex));
             channel.show();
             argoLightCommand.checkCanceled();
 
-            // get the central cross
-            Roi crossRoi = Processing.getCentralCross(channel, roiManager, pixelSizeImage, userThresholdingMethod, argoFOV);
-            if(crossRoi.getStatistics().roiWidth < 0){
-                IJLogger.error("Cross detection", "The central cross cannot be detected." +
-                        "Cannot compute metrics");
-                throw new RuntimeException();
+            Roi crossRoi;
+            List<Point2D> refinedGridPoints = new ArrayList<>();
+            boolean isRefined = useSharedGrid && referenceCrossRoi != null;
+            if(isRefined){
+                // only refine the rings of the reference channel, to measure the chromatic shift
+                refinedGridPoints = Processing.refineRingCentroids(channel.getProcessor(), referenceGridPoints, 2 * ovalRadius);
+                double dx = 0, dy = 0;
+                for(int i = 0; i < refinedGridPoints.size(); i++){
+                    dx += refinedGridPoints.get(i).getX() - referenceGridPoints.get(i).getX();
+                    dy += refinedGridPoints.get(i).getY() - referenceGridPoints.get(i).getY();
+                }
+                dx /= refinedGridPoints.size();
+                dy /= refinedGridPoints.size();
+
+                // the cross follows the average shift of the rings
+                crossRoi = (Roi) referenceCrossRoi.clone();
+                crossRoi.setLocation(referenceCrossRoi.getXBase() + dx, referenceCrossRoi.getYBase() + dy);
+                imageChannel.addKeyValue("ch"+c+"_xShift_to_ch0_(pix)", String.valueOf(dx));
+                imageChannel.addKeyValue("ch"+c+"_yShift_to_ch0_(pix)", String.valueOf(dy));
+                IJLogger.info("Channel "+c,"Shift to channel 0 = (" + dx + ", " + dy + ") pix");
+            } else {
+                // get the central cross
+                crossRoi = Processing.getCentralCross(channel, roiManager, pixelSizeImage, userThresholdingMethod, argoFOV);
+                if (crossRoi.getStatistics().roiWidth < 0) {
+                    IJLogger.error("Cross detection", "The central cross cannot be detected." +
+                            "Cannot compute metrics");
+                    throw new RuntimeException();
+                }
             }
 
             imageChannel.setCenterCross(crossRoi);
@@ -142,8 +190,14 @@ public class ArgoSlideProcessing {
             roiManager.addRoi(crossRoi);
             channel.setRoi(crossRoi);
 
-            List<Point2D> gridPoints = Processing.getGridPoint(channel, crossRoi, sigma, medianRadius,
-                    particleThreshold, userThresholdingMethod, ovalRadius);
+            List<Point2D> gridPoints = isRefined ? refinedGridPoints : Processing.getGridPoint(channel, crossRoi, sigma,
+                    medianRadius, particleThreshold, userThresholdingMethod, ovalRadius);
+
+            // keep the detected grid for the next channels
+            if(useSharedGrid && !isRefined && !gridPoints.isEmpty()) {
+                referenceCrossRoi = crossRoi;
+                referenceGridPoints = gridPoints;
+            }
 
             if(gridPoints.isEmpty()){
                 IJLogger.error("Ring detection", "No rings are detected on the channel "+c+" of the current image. " +
@@ -163,21 +217,29 @@ public class ArgoSlideProcessing {
                     .filter(e -> (Math.abs(e.getX() - xCross) < (2.5*argoSpacing) / pixelSizeImage && Math.abs(e.getY() - yCross) < (2.5*argoSpacing) / pixelSizeImage))
                     .collect(Collectors.toList());
 
+            // grid estimate of the current frame, reused for the time series
+            double xStepAvg = Double.NaN;
+            double yStepAvg = Double.NaN;
+            double rotationAngle = 0;
+            int nIdealPoints = 0;
+            List<Point2D> sortedGridPoints = new ArrayList<>();
+            List<Point2D> fwhmGridPoints = new ArrayList<>();
+
             if(!imageFile.getImagedFoV().equals(Tools.PARTIAL_FOV)){
                 // get the average x step
-                double xStepAvg = Processing.getAverageStep(smallerGrid.stream().map(Point2D::getX).collect(Collectors.toList()), pixelSizeImage, argoSpacing);
+                xStepAvg = Processing.getAverageStep(smallerGrid.stream().map(Point2D::getX).collect(Collectors.toList()), pixelSizeImage, argoSpacing);
                 imageChannel.addKeyValue("ch"+c+"_xStepAvg_(pix)", String.valueOf(xStepAvg));
                 IJLogger.info("Channel "+c,"xStepAvg = " +xStepAvg + " pix");
 
                 // get the average y step
-                double yStepAvg = Processing.getAverageStep(smallerGrid.stream().map(Point2D::getY).collect(Collectors.toList()), pixelSizeImage, argoSpacing);
+                yStepAvg = Processing.getAverageStep(smallerGrid.stream().map(Point2D::getY).collect(Collectors.toList()), pixelSizeImage, argoSpacing);
                 imageChannel.addKeyValue("ch"+c+"_yStepAvg_(pix)", String.valueOf(yStepAvg));
                 IJLogger.info("Channel "+c,"yStepAvg = " +yStepAvg + " pix");
 
                 // get the rotation angle
                 ArgoGrid argoGrid = Processing.computeRotationAndFinalFoV(gridPoints, xCross, yCross, pixelSizeImage, argoSpacing, ovalRadius, channel);
 
-                double rotationAngle = argoGrid.getRotationAngle();
+                rotationAngle = argoGrid.getRotationAngle();
                 if(Double.isNaN(rotationAngle)){
                     IJLogger.error("Channel "+c,"Cannot compute the rotation angle. Metrics not computed");
                     throw new RuntimeException();
@@ -191,8 +253,8 @@ public class ArgoSlideProcessing {
                 gridPoints.forEach(pR-> {roiManager.addRoi(new OvalRoi((pR.getX()-4*ovalRadius+0.5), pR.getY()-4*ovalRadius+0.5, 8*ovalRadius, 8*ovalRadius));});
 
                 // get the ideal grid
-                List<Point2D> idealGridPoints = Processing.getIdealGridPoints(crossRoi, Math.min((int)Math.sqrt(gridPoints.size() + 1), argoGrid.getMaxNbPointsPerLine()),
-                        xStepAvg, yStepAvg, rotationAngle);
+                nIdealPoints = Math.min((int)Math.sqrt(gridPoints.size() + 1), argoGrid.getMaxNbPointsPerLine());
+                List<Point2D> idealGridPoints = Processing.getIdealGridPoints(crossRoi, nIdealPoints, xStepAvg, yStepAvg, rotationAngle);
 
                 // sort the computed grid points according to ideal grid order
                 gridPoints = Processing.sortFromReference(Arrays.asList(roiManager.getRoisAsArray()), idealGridPoints);
@@ -224,6 +286,7 @@ public class ArgoSlideProcessing {
                 imageChannel.addFieldDistortion(Processing.computeFieldDistortion(gridPoints, idealGridPoints, pixelSizeImage));
                 argoLightCommand.checkCanceled();
                 imageChannel.addFieldUniformity(Processing.computeFieldUniformity(gridPoints, channel, ovalRadius));
+                sortedGridPoints = gridPoints;
                 // add tags to the image
                 imageFile.addTags(Tools.FIELD_DISTORTION_TAG, Tools.FIELD_UNIFORMITY_TAG);
                 argoLightCommand.checkCanceled();
@@ -249,12 +312,20 @@ public class ArgoSlideProcessing {
                 smallerGrid.forEach(pR -> {roiManager.addRoi(new PointRoi(pR.getX(), pR.getY()));});
                 // compute metrics
                 imageChannel.addFWHM(Processing.computeFWHM(smallerGrid, channel, lineLength, pixelSizeImage));
+                fwhmGridPoints = smallerGrid;
                 // add tag to image
                 imageFile.addTags(Tools.FWHM_TAG);
 
                 argoLightCommand.checkCanceled();
             }
             roiManager.runCommand(channel,"Show All without labels");
+
+            // follow the grid over time, starting from the frame analysed above
+            if(analyseAllFrames && imp.getNFrames() > 1){
+                ArgoSlideTimeSeries.run(imp, imageChannel, zPlane, frame, crossRoi, rotationAngle, sortedGridPoints,
+                        fwhmGridPoints, xStepAvg, yStepAvg, nIdealPoints, pixelSizeImage, argoSpacing, ovalRadius,
+                        lineLength, argoLightCommand);
+            }
             imageFile.addChannel(imageChannel);
         }
         roiManager.reset();
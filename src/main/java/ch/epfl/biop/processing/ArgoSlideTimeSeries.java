@@ -0,0 +1,168 @@
+package ch.epfl.biop.processing;
+
+import ch.epfl.biop.command.ArgoLightCommand;
+import ch.epfl.biop.image.ImageChannel;
+import ch.epfl.biop.utils.IJLogger;
+import ch.epfl.biop.utils.Tools;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the metrics of one channel on every frame of a time-lapse image.
+ * <p>
+ * The grid is fully detected on a reference frame by {@link ArgoSlideProcessing}. Each other frame is then
+ * warm-started from its neighbour, closer to the reference frame : ring positions are only refined locally and the
+ * cross position and rotation angle are updated from the refined rings. Once all positions are known, metrics of
+ * all frames are computed in parallel.
+ */
+public class ArgoSlideTimeSeries {
+
+    /**
+     * Grid estimate on one frame
+     */
+    private static class FrameEstimate {
+        private final double xCross;
+        private final double yCross;
+        private final double rotationAngle;
+        private final List<Point2D> gridPoints;
+        private final List<Point2D> fwhmPoints;
+
+        FrameEstimate(double xCross, double yCross, double rotationAngle, List<Point2D> gridPoints, List<Point2D> fwhmPoints){
+            this.xCross = xCross;
+            this.yCross = yCross;
+            this.rotationAngle = rotationAngle;
+            this.gridPoints = gridPoints;
+            this.fwhmPoints = fwhmPoints;
+        }
+    }
+
+    /**
+     * Run the analysis on all the frames of the current channel and save the time series in the {@link ImageChannel}
+     *
+     * @param imp image to process
+     * @param imageChannel channel object where to store the time series
+     * @param zPlane z-plane analysed (1-based)
+     * @param referenceFrame frame on which the grid has been fully detected (1-based)
+     * @param crossRoi central cross detected on the reference frame
+     * @param rotationAngle rotation angle measured on the reference frame
+     * @param gridPoints rings detected on the reference frame, sorted like the ideal grid (empty if not computed)
+     * @param fwhmPoints rings used for FWHM on the reference frame (empty if not computed)
+     * @param xStepAvg average x step of the grid
+     * @param yStepAvg average y step of the grid
+     * @param nIdealPoints number of rings per line of the ideal grid
+     * @param pixelSize pixel size of the image
+     * @param argoSpacing distance between two rings in the grid in um
+     * @param ovalRadius ring radius in pixels
+     * @param lineLength profile length for FWHM in pixels
+     */
+    public static void run(ImagePlus imp, ImageChannel imageChannel, int zPlane, int referenceFrame, Roi crossRoi,
+                           double rotationAngle, List<Point2D> gridPoints, List<Point2D> fwhmPoints, double xStepAvg,
+                           double yStepAvg, int nIdealPoints, double pixelSize, int argoSpacing, int ovalRadius,
+                           int lineLength, ArgoLightCommand argoLightCommand){
+        final int c = imageChannel.getId();
+        final ImageStack stack = imp.getStack();
+        final int searchRadius = 2 * ovalRadius;
+        final Rectangle crossBounds = crossRoi.getBounds();
+        final double xCrossRef = crossRoi.getStatistics().xCentroid;
+        final double yCrossRef = crossRoi.getStatistics().yCentroid;
+
+        IJLogger.info("Channel "+c, "Computing time series on "+imp.getNFrames()+" frames");
+
+        // warm-started estimation of the grid, from the reference frame to the first and the last frames
+        FrameEstimate[] estimates = new FrameEstimate[imp.getNFrames() + 1];
+        estimates[referenceFrame] = new FrameEstimate(xCrossRef, yCrossRef, rotationAngle, gridPoints, fwhmPoints);
+        for(int t = referenceFrame + 1; t <= imp.getNFrames(); t++) {
+            estimates[t] = estimateFrame(stack.getProcessor(imp.getStackIndex(c + 1, zPlane, t)), estimates[t - 1],
+                    pixelSize, argoSpacing, ovalRadius, searchRadius, imp);
+            argoLightCommand.checkCanceled();
+        }
+        for(int t = referenceFrame - 1; t >= 1; t--) {
+            estimates[t] = estimateFrame(stack.getProcessor(imp.getStackIndex(c + 1, zPlane, t)), estimates[t + 1],
+                    pixelSize, argoSpacing, ovalRadius, searchRadius, imp);
+            argoLightCommand.checkCanceled();
+        }
+
+        // compute metrics of all frames in parallel
+        IntStream frames = IntStream.rangeClosed(1, imp.getNFrames());
+        if(!stack.isVirtual())
+            frames = frames.parallel();
+
+        List<Map<String, Double>> frameMetrics = new ArrayList<>();
+        for(int t = 0; t <= imp.getNFrames(); t++) frameMetrics.add(null);
+
+        frames.forEach(t -> {
+            FrameEstimate estimate = estimates[t];
+            ImagePlus frameImp = new ImagePlus(imp.getTitle() + "_ch" + c + "_t" + t, stack.getProcessor(imp.getStackIndex(c + 1, zPlane, t)));
+            Map<String, Double> metrics = new LinkedHashMap<>();
+            metrics.put("Frame", (double) t);
+            metrics.put("Cross_horizontal_shift__pix", estimate.xCross - imp.getWidth()/2);
+            metrics.put("Cross_vertical_shift__pix", estimate.yCross - imp.getHeight()/2);
+            metrics.put("Rotation_angle__deg", estimate.rotationAngle * 180 / Math.PI);
+
+            if(!estimate.gridPoints.isEmpty()) {
+                Roi frameCross = new Roi(crossBounds.x + estimate.xCross - xCrossRef, crossBounds.y + estimate.yCross - yCrossRef,
+                        crossBounds.width, crossBounds.height);
+                List<Point2D> idealGridPoints = Processing.getIdealGridPoints(frameCross, nIdealPoints, xStepAvg, yStepAvg, estimate.rotationAngle);
+                metrics.put("Field_Distortion_avg__um", Tools.computeStatistics(Processing.computeFieldDistortion(estimate.gridPoints, idealGridPoints, pixelSize))[0]);
+                metrics.put("Field_Uniformity_avg", Tools.computeStatistics(Processing.computeFieldUniformity(estimate.gridPoints, frameImp, ovalRadius))[0]);
+            }
+            if(!estimate.fwhmPoints.isEmpty())
+                metrics.put("Field_FWHM_avg__um", Tools.computeStatistics(Processing.computeFWHM(estimate.fwhmPoints, frameImp, lineLength, pixelSize))[0]);
+
+            frameMetrics.set(t, metrics);
+        });
+        argoLightCommand.checkCanceled();
+
+        // save the time series in the frame order
+        for(int t = 1; t <= imp.getNFrames(); t++)
+            imageChannel.addTimePoint(frameMetrics.get(t));
+    }
+
+    /**
+     * estimate the grid on a frame, starting from the estimate of the neighbouring frame
+     *
+     * @param ip frame to process
+     * @param previous estimate of the neighbouring frame
+     * @return the grid estimate of the current frame
+     */
+    private static FrameEstimate estimateFrame(ImageProcessor ip, FrameEstimate previous, double pixelSize,
+                                               int argoSpacing, int ovalRadius, int searchRadius, ImagePlus imp){
+        List<Point2D> gridPoints = Processing.refineRingCentroids(ip, previous.gridPoints, searchRadius);
+        List<Point2D> fwhmPoints = Processing.refineRingCentroids(ip, previous.fwhmPoints, searchRadius);
+
+        // the cross follows the average displacement of the rings
+        List<Point2D> previousPoints = previous.gridPoints.isEmpty() ? previous.fwhmPoints : previous.gridPoints;
+        List<Point2D> currentPoints = previous.gridPoints.isEmpty() ? fwhmPoints : gridPoints;
+        double dx = 0, dy = 0;
+        for(int i = 0; i < currentPoints.size(); i++){
+            dx += currentPoints.get(i).getX() - previousPoints.get(i).getX();
+            dy += currentPoints.get(i).getY() - previousPoints.get(i).getY();
+        }
+        if(!currentPoints.isEmpty()){
+            dx /= currentPoints.size();
+            dy /= currentPoints.size();
+        }
+        double xCross = previous.xCross + dx;
+        double yCross = previous.yCross + dy;
+
+        // update the rotation angle from the refined rings
+        double rotationAngle = previous.rotationAngle;
+        if(!gridPoints.isEmpty()){
+            double angle = Processing.computeRotationAndFinalFoV(gridPoints, xCross, yCross, pixelSize, argoSpacing, ovalRadius, imp).getRotationAngle();
+            if(!Double.isNaN(angle))
+                rotationAngle = angle;
+        }
+
+        return new FrameEstimate(xCross, yCross, rotationAngle, gridPoints, fwhmPoints);
+    }
+}
@@ -4,17 +4,21 @@ import ch.epfl.biop.command.ArgoLightCommand;
 import ch.epfl.biop.image.ImageChannel;
 import ch.epfl.biop.image.ImageFile;
 import ch.epfl.biop.retrievers.Retriever;
+import ch.epfl.biop.retrievers.SeriesVirtualStack;
 import ch.epfl.biop.senders.LocalSender;
 import ch.epfl.biop.senders.Sender;
 import ch.epfl.biop.utils.IJLogger;
+import ch.epfl.biop.utils.ImageProcessorPool;
 import ch.epfl.biop.utils.Tools;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.OvalRoi;
 import ij.gui.Roi;
 import ij.measure.CurveFitter;
 import ij.measure.ResultsTable;
 import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import org.scijava.Cancelable;
 
@@ -26,6 +30,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -53,71 +58,84 @@ public class Processing {
      * @param argoSpacing distance between two rings in the grid in um
      * @param argoFOV FoV of the pattern B of the ArgoSlide in um
      * @param argoNPoints number of rings in the same line
+     * @param useBestFocusPlane true to analyse the sharpest z-plane instead of the middle one
+     * @param analyseAllFrames true to compute a metric time series over all the frames of time-lapse images
+     * @param useSharedGrid true to detect the grid on the first channel only and refine it on the other channels
      */
     public static void run(Retriever retriever, boolean savingHeatMaps, Sender sender, double userSigma,
                            double userMedianRadius, String userThresholdingMethod,
                            double userParticleThreshold, double userRingRadius, String argoSlide,
-                           int argoSpacing, int argoFOV, int argoNPoints, ArgoLightCommand argoLightCommand){
+                           int argoSpacing, int argoFOV, int argoNPoints, boolean useBestFocusPlane,
+                           boolean analyseAllFrames, boolean useSharedGrid, ArgoLightCommand argoLightCommand){
         Map<String, List<List<Double>>> summaryMap = new HashMap<>();
         List<String> headers = new ArrayList<>();
         List<String> IDs = retriever.getIDs();
 
-        // loop on each image file, based on its ID (OMERO ID or UUID for local image)
-        for (String Id : IDs) {
-            // get the image
-            List<ImagePlus> impList = retriever.getImage(Id);
-
-            // loop on image series
-            for (int serie = 0; serie < impList.size(); serie++) {
-                ImagePlus imp = impList.get(serie);
-                if (imp == null)
-                    continue;
-
-                // define a unique ID per serie
-                String imgTitle = imp.getTitle();
-                String uniqueID = imgTitle + Tools.SEPARATION_CHARACTER + Id;
-
-                try {
-                    // create a new ImageFile object
-                    IJLogger.info("Working on image " + imgTitle);
-                    ImageFile imageFile = new ImageFile(imp, Id, imgTitle, serie + 1);
-
-                    boolean isOldProtocol = false;
-
-                    // choose the right ArgoLight processing
-                    if (!imageFile.getArgoSlideName().contains("ArgoSimOld")) {
-                        ArgoSlideProcessing.run(imageFile, userSigma, userMedianRadius, userThresholdingMethod,
-                                userParticleThreshold, userRingRadius, argoSlide, argoSpacing, argoFOV, argoNPoints,
-                                argoLightCommand);
-                    } else {
-                        ArgoSlideOldProcessing.run(imageFile, argoLightCommand);
-                        isOldProtocol = true;
+        try {
+            // loop on each image file, based on its ID (OMERO ID or UUID for local image)
+            for (String Id : IDs) {
+                // get the image series, read one at a time
+                Iterator<ImagePlus> impIterator = retriever.iterateImage(Id);
+
+                // loop on image series
+                for (int serie = 0; impIterator.hasNext(); serie++) {
+                    ImagePlus imp = impIterator.next();
+                    if (imp == null)
+                        continue;
+
+                    // define a unique ID per serie
+                    String imgTitle = imp.getTitle();
+                    String uniqueID = imgTitle + Tools.SEPARATION_CHARACTER + Id;
+
+                    try {
+                        // create a new ImageFile object
+                        IJLogger.info("Working on image " + imgTitle);
+                        ImageFile imageFile = new ImageFile(imp, Id, imgTitle, serie + 1);
+
+                        boolean isOldProtocol = false;
+
+                        // choose the right ArgoLight processing
+                        if (!imageFile.getArgoSlideName().contains("ArgoSimOld")) {
+                            ArgoSlideProcessing.run(imageFile, userSigma, userMedianRadius, userThresholdingMethod,
+                                    userParticleThreshold, userRingRadius, argoSlide, argoSpacing, argoFOV, argoNPoints,
+                                    useBestFocusPlane, analyseAllFrames, useSharedGrid, argoLightCommand);
+                        } else {
+                            ArgoSlideOldProcessing.run(imageFile, argoLightCommand);
+                            isOldProtocol = true;
+                        }
+
+                        IJLogger.info("End of processing");
+                        argoLightCommand.checkCanceled();
+                        IJLogger.info("Sending results ... ");
+
+                        // send image results (metrics, rings, tags, key-values)
+                        sender.initialize(imageFile, retriever);
+                        sender.sendTags(imageFile.getTags());
+                        argoLightCommand.checkCanceled();
+                        sendResults(sender, imageFile, savingHeatMaps, isOldProtocol, argoSpacing);
+
+                        // metrics summary to populate parent table
+                        Map<List<String>, List<List<Double>>> allChannelMetrics = imageFile.summaryForParentTable();
+                        headers = new ArrayList<>(allChannelMetrics.keySet()).get(0);
+                        if (!allChannelMetrics.values().isEmpty())
+                            summaryMap.put(uniqueID, allChannelMetrics.values().iterator().next());
+
+                    } catch (CancellationException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        IJLogger.error("An error occurred during processing ; cannot analyse the image " + imgTitle, e);
                     }
-
-                    IJLogger.info("End of processing");
-                    argoLightCommand.checkCanceled();
-                    IJLogger.info("Sending results ... ");
-
-                    // send image results (metrics, rings, tags, key-values)
-                    sender.initialize(imageFile, retriever);
-                    sender.sendTags(imageFile.getTags());
-                    argoLightCommand.checkCanceled();
-                    sendResults(sender, imageFile, savingHeatMaps, isOldProtocol, argoSpacing);
-
-                    // metrics summary to populate parent table
-                    Map<List<String>, List<List<Double>>> allChannelMetrics = imageFile.summaryForParentTable();
-                    headers = new ArrayList<>(allChannelMetrics.keySet()).get(0);
-                    if (!allChannelMetrics.values().isEmpty())
-                        summaryMap.put(uniqueID, allChannelMetrics.values().iterator().next());
-
-                } catch (CancellationException e) {
-                    throw e;
-                } catch (Exception e) {
-                    IJLogger.error("An error occurred during processing ; cannot analyse the image " + imgTitle, e);
                 }
             }
+        } finally {
+            // save results buffered across images (e.g. tags and key-values), even if the run is canceled
+            sender.finish();
         }
 
+        // report buffer reuse and release pooled buffers
+        ImageProcessorPool.logStatistics();
+        ImageProcessorPool.clearAll();
+
         // populate parent table with summary results
         argoLightCommand.checkCanceled();
         sender.populateParentTable(retriever, summaryMap, headers, !retriever.isProcessingAllRawImages());
@@ -157,6 +175,10 @@ public class Processing {
             fwhmValues.add(channel.getFWHM());
             chIds.add(channel.getId());
 
+            // send metrics computed on each time point
+            if(!channel.getTimeSeries().isEmpty())
+                sender.sendTimeSeriesTable(channel.getTimeSeries(), channel.getId());
+
             // send heat maps
             if (savingHeatMaps) {
                 if(isOldProtocol || !imageFile.getImagedFoV().equals(Tools.PARTIAL_FOV)) sender.sendHeatMaps(channel.getFieldDistortionHeatMap(imageFile.getImgNameWithoutExtension(), argoSpacing));
@@ -177,9 +199,48 @@ public class Processing {
             keyValues.put("Image_Serie", String.valueOf(imageFile.getSerie()));
         }
         sender.sendKeyValues(keyValues);
+
+        // save buffered results (i.e. ROIs of all channels) at once
+        sender.flush();
     }
 
 
+    /**
+     * find the sharpest z-plane of a channel. The normalized variance of a central tile of each plane is used as focus
+     * metric ; for virtual stacks, only this tile is read. Planes are scored in parallel, unless the stack is virtual
+     * (planes are then read one after the other).
+     *
+     * @param imp the z-stack
+     * @param channel channel to focus on (1-based)
+     * @param frame frame to focus on (1-based)
+     * @return the z position of the sharpest plane (1-based)
+     */
+    protected static int getBestFocusSlice(ImagePlus imp, int channel, int frame){
+        ImageStack stack = imp.getStack();
+        Rectangle focusRegion = Tools.getFocusRegion(imp.getWidth(), imp.getHeight());
+        IntStream slices = IntStream.rangeClosed(1, imp.getNSlices());
+        if(!stack.isVirtual())
+            slices = slices.parallel();
+
+        double[] focusScores = new double[imp.getNSlices() + 1];
+        slices.forEach(z -> {
+            int n = imp.getStackIndex(channel, z, frame);
+            if(stack instanceof SeriesVirtualStack) {
+                ImageProcessor tile = ((SeriesVirtualStack) stack).getProcessor(n, focusRegion);
+                focusScores[z] = tile == null ? 0 : Tools.computeNormalizedVariance(tile, new Rectangle(0, 0, tile.getWidth(), tile.getHeight()));
+            } else {
+                focusScores[z] = Tools.computeNormalizedVariance(stack.getProcessor(n), focusRegion);
+            }
+        });
+
+        int bestSlice = 1;
+        for(int z = 2; z <= imp.getNSlices(); z++){
+            if(focusScores[z] > focusScores[bestSlice])
+                bestSlice = z;
+        }
+        return bestSlice;
+    }
+
     /**
      * find the central cross of the ArgoLight pattern B
      *
@@ -198,9 +259,9 @@ public class Processing {
         IJ.run(imp,"Remove Overlay", "");
 
         // Detect Cross in the center of the FOV
-        ImagePlus mask_imp = imp.duplicate();
-        IJ.setAutoThreshold(mask_imp, segMethod+" dark");
-        IJ.run(mask_imp, "Convert to Mask", "");
+        ImageProcessor maskIp = createMask(imp.getProcessor(), segMethod);
+        ImagePlus mask_imp = new ImagePlus(imp.getTitle(), maskIp);
+        mask_imp.setCalibration(imp.getCalibration());
         IJ.run(mask_imp, "Analyze Particles...", "size="+(2.5/imagePixelSize)+"-Infinity add");
 
         // get central ROIs while excluding bounding semi-crosses
@@ -213,10 +274,36 @@ public class Processing {
         // get the ROI with larger width corresponding to the central cross
         Optional<Roi> crossRoiOpt = rois.stream().max(Comparator.comparing(roi -> roi.getStatistics().roiWidth));
         rm.reset();
+        ImageProcessorPool.get().release(maskIp);
 
         return crossRoiOpt.map(points -> new Roi(points.getBounds())).orElseGet(() -> new Roi(new Rectangle(-1, -1, -1, -1)));
     }
 
+    /**
+     * Threshold an image into a binary mask taken from the {@link ImageProcessorPool}, instead of "Convert to Mask"
+     * which allocates a new processor. The mask is thresholded on its foreground, so that particles can be analysed.
+     * The mask has to be given back to the pool once it is not used anymore.
+     *
+     * @param ip image to threshold
+     * @param segMethod auto-threshold method (bright objects on dark background)
+     * @return the binary mask (255 for foreground)
+     */
+    private static ImageProcessor createMask(ImageProcessor ip, String segMethod){
+        ip.setAutoThreshold(segMethod + " dark");
+        double lower = ip.getMinThreshold();
+        double upper = ip.getMaxThreshold();
+        ip.resetThreshold();
+
+        ImageProcessor mask = ImageProcessorPool.get().createMask(ip.getWidth(), ip.getHeight());
+        byte[] maskPixels = (byte[]) mask.getPixels();
+        for(int i = 0; i < maskPixels.length; i++){
+            float value = ip.getf(i);
+            maskPixels[i] = (value >= lower && value <= upper) ? (byte) 255 : 0;
+        }
+        mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+        return mask;
+    }
+
     /**
      * generate a list of point with small rings coordinates.
      *
@@ -236,22 +323,27 @@ public class Processing {
         Roi enlargedRectangle = new Roi(new Rectangle(ovalRadius, ovalRadius, imp.getWidth()-2*ovalRadius, imp.getHeight()-2*ovalRadius ));
 
         // find ring centers
-        ImagePlus imp2 = imp.duplicate();
+        ImageProcessor ip2 = ImageProcessorPool.get().duplicate(imp.getProcessor());
+        ImagePlus imp2 = new ImagePlus(imp.getTitle(), ip2);
+        imp2.setCalibration(imp.getCalibration());
         // preprocess the image
         IJ.run(imp2, "Median...", "radius="+medianRadius);
         IJ.run(imp2, "Gaussian Blur...", "sigma="+sigma);
 
         // threshold the image
-        IJ.setAutoThreshold(imp2, segMethod+" dark");
-        IJ.run(imp2, "Convert to Mask", "");
+        ImageProcessor maskIp = createMask(ip2, segMethod);
+        ImagePlus mask_imp = new ImagePlus(imp.getTitle(), maskIp);
+        mask_imp.setCalibration(imp.getCalibration());
 
         // make measurements
         IJ.run("Set Measurements...", "area centroid center display redirect=None decimal=3");
-        IJ.run(imp2, "Analyze Particles...", "pixel display clear overlay add");
+        IJ.run(mask_imp, "Analyze Particles...", "pixel display clear overlay add");
         ResultsTable rt_points = ResultsTable.getResultsTable("Results");
         RoiManager rm = RoiManager.getRoiManager();
         rt_points.reset();
         rm.runCommand(imp,"Measure");
+        ImageProcessorPool.get().release(ip2);
+        ImageProcessorPool.get().release(maskIp);
 
         // get coordinates of each point
         float[] raw_x_array = rt_points.getColumn(rt_points.getColumnIndex("XM"));
@@ -276,6 +368,54 @@ public class Processing {
         return gridPoints;
     }
 
+    /**
+     * refine the position of rings whose approximate centers are already known. For each ring, the intensity-weighted
+     * centroid is computed in a square window around the previous center, after removing the local background.
+     * This method only reads pixels and can be run concurrently on different planes.
+     *
+     * @param ip image where to refine ring positions
+     * @param seeds approximate ring centers
+     * @param searchRadius half-size of the search window, in pixels
+     * @return the refined centers, in the same order as the seeds
+     */
+    protected static List<Point2D> refineRingCentroids(ImageProcessor ip, List<Point2D> seeds, int searchRadius){
+        List<Point2D> refinedPoints = new ArrayList<>();
+        for(Point2D seed : seeds){
+            Point2D center = seed;
+            // two iterations are enough to re-center the window on the ring
+            for(int iteration = 0; iteration < 2; iteration++){
+                int xMin = Math.max(0, (int)Math.round(center.getX()) - searchRadius);
+                int xMax = Math.min(ip.getWidth() - 1, (int)Math.round(center.getX()) + searchRadius);
+                int yMin = Math.max(0, (int)Math.round(center.getY()) - searchRadius);
+                int yMax = Math.min(ip.getHeight() - 1, (int)Math.round(center.getY()) + searchRadius);
+                if(xMin > xMax || yMin > yMax)
+                    break;
+
+                // local background
+                double background = Double.MAX_VALUE;
+                for(int y = yMin; y <= yMax; y++)
+                    for(int x = xMin; x <= xMax; x++)
+                        background = Math.min(background, ip.getf(x, y));
+
+                // intensity-weighted centroid, with pixel centers as in ImageJ measurements
+                double sum = 0, xSum = 0, ySum = 0;
+                for(int y = yMin; y <= yMax; y++){
+                    for(int x = xMin; x <= xMax; x++){
+                        double value = ip.getf(x, y) - background;
+                        sum += value;
+                        xSum += value * (x + 0.5);
+                        ySum += value * (y + 0.5);
+                    }
+                }
+                if(sum <= 0)
+                    break;
+                center = new Point2D.Double(xSum / sum, ySum / sum);
+            }
+            refinedPoints.add(center);
+        }
+        return refinedPoints;
+    }
+
     /**
      * compute the average step between values of the list
      *
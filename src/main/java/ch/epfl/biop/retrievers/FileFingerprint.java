@@ -0,0 +1,64 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Fast content fingerprint of a file, used as a stable image ID.
+ * <p>
+ * The fingerprint is a SHA-1 hash of the file size and of a few sampled blocks (beginning, middle and end of the
+ * file) ; small files are fully hashed. Copied, renamed or re-exported files with the same bytes get the same ID,
+ * whatever their name or location.
+ */
+public class FileFingerprint {
+    final private static int BLOCK_SIZE = 64 * 1024;
+    final private static int N_BLOCKS = 3;
+    final private static int FINGERPRINT_LENGTH = 16; // bytes
+
+    private FileFingerprint(){
+
+    }
+
+    /**
+     * @param file file to fingerprint
+     * @return the hexadecimal fingerprint of the file, or null if the file cannot be read
+     */
+    public static String of(File file){
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            long size = raf.length();
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(size).array());
+
+            byte[] block = new byte[BLOCK_SIZE];
+            if(size <= (long) N_BLOCKS * BLOCK_SIZE) {
+                // small file : hash everything
+                int n;
+                while ((n = raf.read(block)) > 0)
+                    digest.update(block, 0, n);
+            } else {
+                long[] positions = {0, size / 2 - BLOCK_SIZE / 2, size - BLOCK_SIZE};
+                for (long position : positions) {
+                    raf.seek(position);
+                    raf.readFully(block);
+                    digest.update(block);
+                }
+            }
+
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < FINGERPRINT_LENGTH; i++)
+                hex.append(String.format("%02x", hash[i]));
+            return hex.toString();
+
+        } catch (IOException | NoSuchAlgorithmException e) {
+            IJLogger.error("File fingerprint", "Cannot compute the fingerprint of " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of downloaded images, saved as ImageJ TIFF files (dimensions and calibration are kept).
+ * <p>
+ * Images are stored under a key that identifies their content (e.g. image id and last update). The cache has a size
+ * budget : when it is exceeded, least recently used images are deleted first.
+ */
+public class ImageCache {
+    final private File folder;
+    final private long maxSize;
+
+    /**
+     * @param folder where to store cached images
+     * @param maxSize maximal size of the cache, in bytes
+     */
+    public ImageCache(File folder, long maxSize){
+        this.folder = folder;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key image key
+     * @return the cached image, or null if the image is not in the cache
+     */
+    public synchronized ImagePlus get(String key){
+        File file = getFile(key);
+        if(!file.exists())
+            return null;
+
+        ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+        if(imp == null) {
+            IJLogger.warn("Image cache", "Cannot read cached image " + file.getName() + " ; it is removed from the cache");
+            if(!file.delete())
+                IJLogger.warn("Image cache", "Cannot delete " + file.getAbsolutePath());
+            return null;
+        }
+
+        // mark as recently used
+        if(!file.setLastModified(System.currentTimeMillis()))
+            IJLogger.warn("Image cache", "Cannot update the last use of " + file.getName());
+        return imp;
+    }
+
+    /**
+     * Add an image to the cache and evict least recently used images if the cache is full
+     *
+     * @param key image key
+     * @param imp image to cache
+     */
+    public synchronized void put(String key, ImagePlus imp){
+        if(!this.folder.exists() && !this.folder.mkdirs()) {
+            IJLogger.warn("Image cache", "Cannot create the cache folder " + this.folder.getAbsolutePath());
+            return;
+        }
+
+        File file = getFile(key);
+        // FileSaver renames the image after the saved file ; the original title is restored for the processing
+        String title = imp.getTitle();
+        boolean isSaved = imp.getStackSize() > 1 ? new FileSaver(imp).saveAsTiffStack(file.getAbsolutePath()) :
+                new FileSaver(imp).saveAsTiff(file.getAbsolutePath());
+        imp.setTitle(title);
+        if(!isSaved) {
+            IJLogger.warn("Image cache", "Cannot save " + imp.getTitle() + " in the cache");
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * delete least recently used images until the cache fits in its size budget
+     */
+    private void evict(){
+        File[] files = this.folder.listFiles((dir, name) -> name.endsWith(".tif"));
+        if(files == null)
+            return;
+
+        long size = Arrays.stream(files).mapToLong(File::length).sum();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for(int i = 0; i < files.length - 1 && size > this.maxSize; i++){
+            size -= files[i].length();
+            if(!files[i].delete())
+                IJLogger.warn("Image cache", "Cannot delete " + files[i].getAbsolutePath());
+        }
+    }
+
+    private File getFile(String key){
+        return new File(this.folder, key.replaceAll("[^a-zA-Z0-9_\\-]", "_") + ".tif");
+    }
+}
@@ -0,0 +1,153 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch a microscope folder and its sub-folders for new images.
+ * <p>
+ * Created and modified files are reported once they are completely written, i.e. once their size has not changed
+ * for a few seconds. New sub-folders are watched as soon as they are created. Folders are not scanned again, except
+ * if the watch service has lost events.
+ */
+public class LocalFolderWatcher {
+    final private static long POLL_INTERVAL_MS = 1000;
+    final private static long STABLE_SIZE_DELAY_MS = 5000;
+
+    final private Path folder;
+    final private WatchService watchService;
+    final private Map<WatchKey, Path> watchedFolders = new HashMap<>();
+    // file -> {last known size, time of the last size change}
+    final private Map<File, long[]> pendingFiles = new HashMap<>();
+
+    /**
+     * @param folder folder to watch
+     * @throws IOException if the folder cannot be watched
+     */
+    public LocalFolderWatcher(File folder) throws IOException {
+        this.folder = folder.toPath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        register(this.folder, false);
+        IJLogger.info("Watch folder", "Watching " + folder.getAbsolutePath() + " for new images");
+    }
+
+    /**
+     * Wait for file events during a short time and return the files that are completely written
+     *
+     * @return new files whose size is stable ; empty list if there is none yet
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public List<File> pollCompletedFiles() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        WatchKey key = this.watchService.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if(key != null) {
+            Path keyFolder = this.watchedFolders.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (keyFolder == null)
+                    continue;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    IJLogger.warn("Watch folder", "Some file events have been lost ; the folder is listed again");
+                    register(keyFolder, true);
+                } else {
+                    Path path = keyFolder.resolve((Path) event.context());
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                            register(path, true);
+                    } else
+                        this.pendingFiles.put(path.toFile(), new long[]{-1, now});
+                }
+            }
+            if (!key.reset()) {
+                this.watchedFolders.remove(key);
+                if (keyFolder != null && keyFolder.equals(this.folder))
+                    IJLogger.warn("Watch folder", "The folder " + this.folder + " cannot be watched anymore");
+            }
+        }
+
+        // report files whose size did not change for a while
+        now = System.currentTimeMillis();
+        List<File> completedFiles = new ArrayList<>();
+        Iterator<Map.Entry<File, long[]>> iterator = this.pendingFiles.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<File, long[]> entry = iterator.next();
+            File file = entry.getKey();
+            long[] state = entry.getValue();
+            if(!file.isFile()) {
+                iterator.remove();
+            } else if(file.length() != state[0]) {
+                state[0] = file.length();
+                state[1] = now;
+            } else if(now - state[1] >= STABLE_SIZE_DELAY_MS) {
+                completedFiles.add(file);
+                iterator.remove();
+            }
+        }
+        return completedFiles;
+    }
+
+    /**
+     * Watch a folder and its sub-folders
+     *
+     * @param root folder to watch
+     * @param addExistingFiles true to also report files already in the folders (e.g. new folder moved in)
+     */
+    private void register(Path root, boolean addExistingFiles){
+        long now = System.currentTimeMillis();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(root) && dir.getFileName().toString().startsWith("."))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedFolders.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (addExistingFiles && attrs.isRegularFile())
+                        pendingFiles.putIfAbsent(file.toFile(), new long[]{-1, now});
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            IJLogger.warn("Watch folder", "Cannot watch the folder " + root);
+        }
+    }
+
+    /**
+     * Stop watching the folder
+     */
+    public void close(){
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            IJLogger.warn("Watch folder", "Cannot close the watch service of " + this.folder);
+        }
+    }
+}
@@ -1,22 +1,28 @@
 package ch.epfl.biop.retrievers;
 
+import ch.epfl.biop.image.ImageFile;
 import ch.epfl.biop.utils.IJLogger;
 import ch.epfl.biop.utils.Tools;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.plugins.BF;
-import loci.plugins.in.ImporterOptions;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -27,10 +33,24 @@ public class LocalRetriever implements Retriever{
     private boolean processAllImages = false;
     private String microscopeFolderPath = "";
     private String resultsFolderPath = "";
+    private String argoSlideName = "";
+    private String microscopeName = "";
     private Map<String,File> filteredFiles;
+    private ProcessedImageIndex processedIndex = ProcessedImageIndex.empty();
+    final private boolean isLazyReading;
 
     public LocalRetriever(String resultsFolderPath){
+        this(resultsFolderPath, true);
+    }
+
+    /**
+     * @param resultsFolderPath path to the results' folder
+     * @param isLazyReading true to only read series metadata when opening an image and to decode planes on demand.
+     *                      False to load all planes of all series in memory.
+     */
+    public LocalRetriever(String resultsFolderPath, boolean isLazyReading){
         this.resultsFolderPath = resultsFolderPath;
+        this.isLazyReading = isLazyReading;
     }
 
     /**
@@ -56,6 +76,8 @@ public class LocalRetriever implements Retriever{
     public boolean loadImages(String parentTarget, String microscopeName, boolean processAllImages, String argoSlideName) {
         // check the existence of the parent folder (i.e. where microscope folder with images should be located)
         this.processAllImages = processAllImages;
+        this.argoSlideName = argoSlideName;
+        this.microscopeName = microscopeName;
 
         File parentFolder = new File(parentTarget);
         if(!parentFolder.exists()){
@@ -84,30 +106,67 @@ public class LocalRetriever implements Retriever{
             return false;
         }
 
-        // set the raw microscope folder path and list images inside
+        // set the raw microscope folder path and list images inside, in all sub-folders
         File microscopeFolder = new File(this.microscopeFolderPath);
-        File[] rawImgFiles = microscopeFolder.listFiles();
-        if(rawImgFiles == null) {
+        if(!microscopeFolder.isDirectory()) {
             IJLogger.error("Load local images","The folder "+this.microscopeFolderPath +" is corrupted ; no images can be listed");
             return false;
         }
+        String microscopeTag = microscopeName.replace("_","");
+        List<File> rawImgFiles = RawImageScanner.scan(microscopeFolder, name -> isCandidate(name, argoSlideName, microscopeTag));
+        IJLogger.info("Load local images", rawImgFiles.size() + " candidate images found in "+this.microscopeFolderPath);
 
-        // find the list of already processed images
-        List<String> processedFiles = listProcessedFiles(this.resultsFolderPath, microscopeName);
+        // index the already processed images, once
+        this.processedIndex = loadProcessedIndex(this.resultsFolderPath, microscopeName);
 
         // filter the list to only process images that have not already been processed
-        List<File> filteredImageFileList = filterImages(Arrays.stream(rawImgFiles).collect(Collectors.toList()), processAllImages,
-                                                     processedFiles, argoSlideName, microscopeName.replace("_",""));
+        List<File> filteredImageFileList = filterImages(rawImgFiles, processAllImages,
+                                                     this.processedIndex, argoSlideName, microscopeTag);
+
+        this.filteredFiles = createIDs(filteredImageFileList, processAllImages);
+        return true;
+    }
+
+    /**
+     * Replace the images to process by new files of the microscope folder, e.g. files acquired after
+     * {@link #loadImages(String, String, boolean, String)}. Already processed files and files that do not
+     * match the microscope and ArgoSlide names are ignored.
+     *
+     * @param newFiles new files of the microscope folder
+     */
+    public void loadNewFiles(List<File> newFiles){
+        // new images are added to the existing results
+        this.processAllImages = false;
+        List<File> filteredImageFileList = filterImages(newFiles, false, this.processedIndex,
+                this.argoSlideName, this.microscopeName.replace("_",""));
+        this.filteredFiles = createIDs(filteredImageFileList, false);
+    }
 
-        // create a unique ID for each new raw image
+    /**
+     * Create a stable ID for each new raw image, from its content fingerprint. Files with the same content as
+     * another file of the list, or as an already processed file, are skipped.
+     *
+     * @param imageFiles raw images
+     * @param processAllImages true to keep files whose content has already been processed
+     * @return map of ID and raw image
+     */
+    private Map<String,File> createIDs(List<File> imageFiles, boolean processAllImages){
         Map<String,File> filteredImagesMap = new HashMap<>();
-        for(File imageFile : filteredImageFileList){
-            String uuid = UUID.randomUUID().toString().replace("-","");
-            filteredImagesMap.put(uuid,imageFile);
+        for(File imageFile : imageFiles){
+            String fingerprint = FileFingerprint.of(imageFile);
+            if(fingerprint == null) {
+                // unreadable file : keep it with a random ID, reading errors are reported later
+                filteredImagesMap.put(UUID.randomUUID().toString().replace("-",""), imageFile);
+            } else if(filteredImagesMap.containsKey(fingerprint)) {
+                IJLogger.info("Load local images", imageFile.getName() + " has the same content as " +
+                        filteredImagesMap.get(fingerprint).getName() + " -> skipped");
+            } else if(!processAllImages && this.processedIndex.isContentProcessed(fingerprint)) {
+                IJLogger.info("Load local images", "The content of " + imageFile.getName() + " has already been processed -> skipped");
+            } else {
+                filteredImagesMap.put(fingerprint, imageFile);
+            }
         }
-
-        this.filteredFiles = filteredImagesMap;
-        return true;
+        return filteredImagesMap;
     }
 
     /**
@@ -116,13 +175,13 @@ public class LocalRetriever implements Retriever{
      * @param resultsFolderPath path to the results' folder. The summary file is located in the
      *                          results folder of the current microscope
      * @param microscopeName current microscope
-     * @return list of images already processed
+     * @return index of images already processed
      */
-    private List<String> listProcessedFiles(String resultsFolderPath, String microscopeName){
+    private ProcessedImageIndex loadProcessedIndex(String resultsFolderPath, String microscopeName){
         // check the existence of the results folder
         File resultsFolder = new File(resultsFolderPath);
         if(!resultsFolder.exists()){
-            return Collections.emptyList();
+            return ProcessedImageIndex.empty();
         }
 
         // list microscope folders
@@ -137,7 +196,7 @@ public class LocalRetriever implements Retriever{
             if (microscopeList.isEmpty()){
                 IJLogger.warn("Load local images","The folder '"+resultsFolder.getName() +"' does not contain any '"+microscopeName+"' folder");
                 IJLogger.warn("Load local images","Cannot check for already processed images. All images will be processed");
-                return Collections.emptyList();
+                return ProcessedImageIndex.empty();
             }else{
                 // select the existing microscope folder
                 IJLogger.info("Load local images","Select folder "+microscopeList.get(0).getAbsolutePath());
@@ -145,13 +204,13 @@ public class LocalRetriever implements Retriever{
             }
         }else{
             IJLogger.error("Load local images","The folder "+resultsFolder.getName() +" is empty");
-            return Collections.emptyList();
+            return ProcessedImageIndex.empty();
         }
 
         // list all files within the selected folder
         File[] resultsImgList = microscopeResultsFolder.listFiles();
         if(resultsImgList == null)
-            return Collections.emptyList();
+            return ProcessedImageIndex.empty();
 
         // get the summary file
         List<File> txtProcessedMicList = Arrays.stream(resultsImgList)
@@ -161,22 +220,12 @@ public class LocalRetriever implements Retriever{
                 .collect(Collectors.toList());
 
         if(txtProcessedMicList.isEmpty())
-            return Collections.emptyList();
+            return ProcessedImageIndex.empty();
 
         // read the summary file is exists
-        File processedImgFile = txtProcessedMicList.get(0);
-        try {
-            List<String> processedFiles = new ArrayList<>();
-            BufferedReader br = new BufferedReader(new FileReader(processedImgFile));
-            String line;
-            while ((line = br.readLine()) != null){
-                processedFiles.add((line));
-            }
-            br.close();
-            return processedFiles;
-        } catch (IOException e) {
-            return Collections.emptyList();
-        }
+        ProcessedImageIndex index = ProcessedImageIndex.load(txtProcessedMicList.get(0));
+        IJLogger.info("Load local images", index.size() + " series already processed");
+        return index;
     }
 
     /**
@@ -184,47 +233,182 @@ public class LocalRetriever implements Retriever{
      *
      * @param imageFiles list of raw files
      * @param processAllImages true to redo the analysis of all images, processed and unprocessed.
-     * @param processedFiles list of processed images
+     * @param processedIndex index of processed images
      * @param argoSlideName Name of the selected ArgoSlide
      * @param microscopeName Name of the selected microscope
      * @return list of non-processed images
      */
-    private List<File> filterImages(List<File> imageFiles, boolean processAllImages, List<String> processedFiles,
+    private List<File> filterImages(List<File> imageFiles, boolean processAllImages, ProcessedImageIndex processedIndex,
                                     String argoSlideName, String microscopeName){
-        if(processedFiles == null || processAllImages)
-            processedFiles = new ArrayList<>();
-
         List<File> filteredFiles = new ArrayList<>();
         for(File rawImgFile : imageFiles){
             String rawImgName = rawImgFile.getName();
-            List<String> dup = processedFiles.stream().filter(e -> e.contains(rawImgName)).collect(Collectors.toList());
-            if(dup.isEmpty() &&
-                    rawImgName.toLowerCase().contains(argoSlideName.toLowerCase()) &&
-                    rawImgName.toLowerCase().contains(microscopeName.toLowerCase()))
+            boolean isProcessed = !processAllImages && processedIndex.isFileProcessed(rawImgFile);
+            if(!isProcessed && isCandidate(rawImgName, argoSlideName, microscopeName))
                 filteredFiles.add(rawImgFile);
         }
         return filteredFiles;
     }
 
+    /**
+     * @param fileName name of a file
+     * @param argoSlideName Name of the selected ArgoSlide
+     * @param microscopeName Name of the selected microscope
+     * @return true if the file is an image of the selected microscope and ArgoSlide
+     */
+    private static boolean isCandidate(String fileName, String argoSlideName, String microscopeName){
+        return fileName.toLowerCase().contains(argoSlideName.toLowerCase()) &&
+                fileName.toLowerCase().contains(microscopeName.toLowerCase()) &&
+                ImageFile.isFileNameValid(fileName);
+    }
+
     @Override
     public List<ImagePlus> getImage(String index) {
+        List<ImagePlus> seriesList = new ArrayList<>();
+        iterateImage(index).forEachRemaining(seriesList::add);
+        return seriesList;
+    }
+
+    @Override
+    public Iterator<ImagePlus> iterateImage(String index) {
         File toProcess = this.filteredFiles.get(index);
 
+        ImageProcessorReader reader;
+        boolean[] selectedSeries;
         try {
-            // set import options
-            ImporterOptions options = new ImporterOptions();
-            options.setId(toProcess.getAbsolutePath());
-            options.setOpenAllSeries(true);
-
-            // read the image as ImagePlus
-            ImagePlus[] images = BF.openImagePlus(options);
-            return Arrays.asList(images);
+            // reuse the reader of the file, with memoized headers
+            reader = ReaderPool.getReader(toProcess);
 
+            // select series from metadata, before reading any pixel, and keep the series position
+            selectedSeries = selectSeries(reader, toProcess);
         } catch (FormatException | IOException e) {
-            return Collections.emptyList();
+            IJLogger.error("Load local images", "Cannot read the image "+toProcess.getAbsolutePath(), e);
+            return Collections.emptyIterator();
+        }
+
+        // open each series only when it is requested
+        return new Iterator<ImagePlus>() {
+            private int series = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.series < selectedSeries.length;
+            }
+
+            @Override
+            public ImagePlus next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                int s = this.series++;
+                return selectedSeries[s] ? openSeries(reader, toProcess, s) : null;
+            }
+        };
+    }
+
+    /**
+     * Read series names and dimensions from the file metadata only, and select the series to process.
+     * Series whose name does not follow the naming convention (macro images, overviews...) or that have already
+     * been processed are skipped.
+     *
+     * @param reader initialized reader of the file
+     * @param imageFile file to read
+     * @return for each series, true if it has to be opened
+     */
+    private boolean[] selectSeries(ImageProcessorReader reader, File imageFile){
+        synchronized (reader) {
+            IMetadata metadata = (IMetadata) reader.getMetadataStore();
+            boolean[] selectedSeries = new boolean[reader.getSeriesCount()];
+            for (int s = 0; s < reader.getSeriesCount(); s++) {
+                reader.setSeries(s);
+                String title = getSeriesTitle(imageFile, metadata.getImageName(s), reader.getSeriesCount());
+
+                boolean isValid = ImageFile.isNameValid(title);
+                boolean isProcessed = !this.processAllImages && this.processedIndex.isSeriesProcessed(title, imageFile);
+                selectedSeries[s] = isValid && !isProcessed;
+
+                IJLogger.info("Series selection", title + " : " + reader.getSizeX() + "x" + reader.getSizeY() +
+                        ", c=" + reader.getSizeC() + ", z=" + reader.getSizeZ() + ", t=" + reader.getSizeT() +
+                        (selectedSeries[s] ? "" : (isProcessed ? " -> already processed, skipped" : " -> not an ArgoSlide image, skipped")));
+            }
+            return selectedSeries;
+        }
+    }
+
+    /**
+     * Open one series as a calibrated hyperstack. In lazy mode, planes are decoded on demand ; otherwise, all
+     * planes are read in memory.
+     *
+     * @param reader initialized reader of the file
+     * @param imageFile file to read
+     * @param series series to open
+     * @return the series as ImagePlus, null if a plane cannot be read
+     */
+    private ImagePlus openSeries(ImageProcessorReader reader, File imageFile, int series){
+        // uncompressed TIFF planes are read directly instead of decoded
+        SeriesVirtualStack virtualStack = new SeriesVirtualStack(reader, series, ReaderPool.getTiffPlanes(imageFile, reader));
+        ImageStack stack = virtualStack;
+        if(!this.isLazyReading) {
+            stack = new ImageStack(virtualStack.getWidth(), virtualStack.getHeight());
+            for (int n = 1; n <= virtualStack.getSize(); n++) {
+                ImageProcessor ip = virtualStack.getProcessor(n);
+                if(ip == null)
+                    return null;
+                stack.addSlice(ip);
+            }
+        }
+
+        synchronized (reader) {
+            IMetadata metadata = (IMetadata) reader.getMetadataStore();
+            ImagePlus imp = new ImagePlus(getSeriesTitle(imageFile, metadata.getImageName(series), reader.getSeriesCount()), stack);
+            imp.setDimensions(virtualStack.getNChannels(), virtualStack.getNSlices(), virtualStack.getNFrames());
+            if(imp.getNChannels() > 1)
+                imp.setOpenAsHyperStack(true);
+
+            // set the pixel size in um
+            Calibration calibration = imp.getCalibration();
+            Length sizeX = metadata.getPixelsPhysicalSizeX(series);
+            Length sizeY = metadata.getPixelsPhysicalSizeY(series);
+            Length sizeZ = metadata.getPixelsPhysicalSizeZ(series);
+            if(sizeX != null && sizeX.value(UNITS.MICROMETER) != null) {
+                calibration.pixelWidth = sizeX.value(UNITS.MICROMETER).doubleValue();
+                calibration.pixelHeight = sizeY != null && sizeY.value(UNITS.MICROMETER) != null ?
+                        sizeY.value(UNITS.MICROMETER).doubleValue() : calibration.pixelWidth;
+                calibration.setUnit("micron");
+            }
+            if(sizeZ != null && sizeZ.value(UNITS.MICROMETER) != null)
+                calibration.pixelDepth = sizeZ.value(UNITS.MICROMETER).doubleValue();
+            return imp;
         }
     }
 
+    /**
+     * @param imageFile file containing the series
+     * @param seriesName name of the series in the metadata
+     * @param nSeries number of series in the file
+     * @return the title given by the Bio-Formats importer to the series
+     */
+    private static String getSeriesTitle(File imageFile, String seriesName, int nSeries){
+        String title = imageFile.getName();
+        if(seriesName != null && !imageFile.getAbsolutePath().endsWith(seriesName) && nSeries > 1)
+            title += " - " + seriesName;
+        return title;
+    }
+
+    /**
+     * @param index image ID, i.e. content fingerprint of the raw file
+     * @return the raw file of the image
+     */
+    public File getFile(String index){
+        return this.filteredFiles.get(index);
+    }
+
+    /**
+     * @return the index of processed images, to update with newly processed images
+     */
+    public ProcessedImageIndex getProcessedIndex(){
+        return this.processedIndex;
+    }
+
     @Override
     public int getNImages() {
         return this.filteredFiles.size();
@@ -244,4 +428,10 @@ public class LocalRetriever implements Retriever{
     public boolean isProcessingAllRawImages() {
         return processAllImages;
     }
+
+    @Override
+    public void close() {
+        // parsed headers stay memoized on disk
+        ReaderPool.closeAll();
+    }
 }
@@ -0,0 +1,144 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+import omero.sys.ParametersI;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static omero.rtypes.rlong;
+import static omero.rtypes.rstring;
+import static omero.rtypes.rtime;
+
+/**
+ * Selection of OMERO images, resolved on the server in a single query instead of listing the whole dataset.
+ * <p>
+ * The selection is written as ';'-separated criteria, all of them have to be fulfilled :
+ * <ul>
+ *     <li>image IDs : "123, 456"</li>
+ *     <li>tag : "tag:name"</li>
+ *     <li>acquisition date window : "days:7" (last 7 days), "from:2024-01-31", "to:2024-02-29" (included)</li>
+ * </ul>
+ */
+public class OMEROImageQuery {
+    final private static String DATE_FORMAT = "yyyy-MM-dd";
+
+    private List<Long> imageIds = Collections.emptyList();
+    private String tagName = null;
+    private Date from = null;
+    private Date to = null;
+
+    private OMEROImageQuery(){
+
+    }
+
+    /**
+     * Read the image selection
+     *
+     * @param selection image selection, as described in the class documentation
+     * @return the query, an empty query if the selection is empty, or null if the selection cannot be read
+     */
+    public static OMEROImageQuery parse(String selection){
+        OMEROImageQuery query = new OMEROImageQuery();
+        if(selection == null)
+            return query;
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+        dateFormat.setLenient(false);
+        for(String criterion : selection.split(";")){
+            criterion = criterion.trim();
+            if(criterion.isEmpty())
+                continue;
+
+            try {
+                String lower = criterion.toLowerCase();
+                if (lower.startsWith("tag:")) {
+                    query.tagName = criterion.substring(4).trim();
+                } else if (lower.startsWith("days:")) {
+                    long days = Long.parseLong(criterion.substring(5).trim());
+                    query.from = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+                } else if (lower.startsWith("from:")) {
+                    query.from = dateFormat.parse(criterion.substring(5).trim());
+                } else if (lower.startsWith("to:")) {
+                    // the last day is included
+                    query.to = new Date(dateFormat.parse(criterion.substring(3).trim()).getTime() + TimeUnit.DAYS.toMillis(1));
+                } else {
+                    List<Long> ids = new ArrayList<>();
+                    for (String id : criterion.split(","))
+                        if (!id.trim().isEmpty())
+                            ids.add(Long.parseLong(id.trim()));
+                    query.imageIds = ids;
+                }
+            } catch (NumberFormatException | ParseException e) {
+                IJLogger.error("Image selection", "Cannot read '" + criterion + "'. Use image IDs (e.g. 123, 456), " +
+                        "tag:name, days:7, from:" + DATE_FORMAT + " or to:" + DATE_FORMAT + ", separated by ';'");
+                return null;
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return true if no criterion is set, i.e. all images of the dataset are selected
+     */
+    public boolean isEmpty(){
+        return this.imageIds.isEmpty() && this.tagName == null && this.from == null && this.to == null;
+    }
+
+    /**
+     * @return the HQL query of the ids of the selected images within a dataset
+     */
+    String toHql(){
+        String hql = "select distinct image.id from Image image join image.datasetLinks datasetLink";
+        if(this.tagName != null)
+            hql += " join image.annotationLinks annotationLink join annotationLink.child tag";
+        hql += " where datasetLink.parent.id = :datasetId";
+        if(!this.imageIds.isEmpty())
+            hql += " and image.id in (:ids)";
+        if(this.tagName != null)
+            hql += " and tag.class = TagAnnotation and tag.textValue = :tag";
+        if(this.from != null)
+            hql += " and image.acquisitionDate >= :from";
+        if(this.to != null)
+            hql += " and image.acquisitionDate < :to";
+        return hql;
+    }
+
+    /**
+     * @param datasetId dataset containing the images
+     * @return the parameters of the HQL query
+     */
+    ParametersI getParameters(long datasetId){
+        ParametersI params = new ParametersI();
+        params.map.put("datasetId", rlong(datasetId));
+        if(!this.imageIds.isEmpty())
+            params.addIds(this.imageIds);
+        if(this.tagName != null)
+            params.map.put("tag", rstring(this.tagName));
+        if(this.from != null)
+            params.map.put("from", rtime(this.from.getTime()));
+        if(this.to != null)
+            params.map.put("to", rtime(this.to.getTime()));
+        return params;
+    }
+
+    @Override
+    public String toString() {
+        List<String> criteria = new ArrayList<>();
+        if(!this.imageIds.isEmpty())
+            criteria.add("ids " + this.imageIds);
+        if(this.tagName != null)
+            criteria.add("tag '" + this.tagName + "'");
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+        if(this.from != null)
+            criteria.add("acquired from " + dateFormat.format(this.from));
+        if(this.to != null)
+            criteria.add("acquired before " + dateFormat.format(this.to));
+        return criteria.isEmpty() ? "all images" : String.join(", ", criteria);
+    }
+}
@@ -1,23 +1,41 @@
 package ch.epfl.biop.retrievers;
 
+import ch.epfl.biop.image.ImageFile;
 import ch.epfl.biop.utils.IJLogger;
 import ch.epfl.biop.utils.Tools;
 import fr.igred.omero.Client;
+import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.repository.DatasetWrapper;
 import fr.igred.omero.repository.ImageWrapper;
+import fr.igred.omero.repository.PixelsWrapper;
 import fr.igred.omero.repository.ProjectWrapper;
 import ij.ImagePlus;
-
+import ij.ImageStack;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
+import omero.ServerError;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.sys.ParametersI;
+
+import java.awt.Rectangle;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import static omero.rtypes.rlist;
+import static omero.rtypes.rstring;
+
 /**
  * Class that retrieve images from OMERO database, based on a container ID.
  */
@@ -27,10 +45,54 @@ public class OMERORetriever implements Retriever {
     private Map<String,ImageWrapper> images = new HashMap<>();
     private long datasetId = -1;
     private boolean processAllRawImages = false;
+    final private boolean isPlaneRetrieval;
+    final private boolean selectFocusPlane;
+    final private boolean readAllFrames;
+    final private OMEROSessionPool sessionPool;
+    final private ImageCache imageCache;
+    final private Map<String, Future<List<ImagePlus>>> downloads = new HashMap<>();
+    private ExecutorService downloadExecutor;
+
 
     public OMERORetriever(Client client, boolean isMicAtProjectLevel){
+        this(client, isMicAtProjectLevel, false, true, true);
+    }
+
+    /**
+     * @param client object that handle the OMERO connection.
+     * @param isMicAtProjectLevel true if the microscope is a project, false if it is a dataset
+     * @param isPlaneRetrieval true to download only the planes needed by the processing, channel by channel ;
+     *                         false to download the whole image
+     * @param selectFocusPlane true to download only the best focus plane of each channel, scored on a central tile of
+     *                         all z-slices ; false to download only the middle one
+     * @param readAllFrames true to download all time points ; false to download only the middle one
+     */
+    public OMERORetriever(Client client, boolean isMicAtProjectLevel, boolean isPlaneRetrieval, boolean selectFocusPlane,
+                          boolean readAllFrames){
+        this(client, isMicAtProjectLevel, isPlaneRetrieval, selectFocusPlane, readAllFrames, null, null);
+    }
+
+    /**
+     * @param client object that handle the OMERO connection.
+     * @param isMicAtProjectLevel true if the microscope is a project, false if it is a dataset
+     * @param isPlaneRetrieval true to download only the planes needed by the processing, channel by channel ;
+     *                         false to download the whole image
+     * @param selectFocusPlane true to download only the best focus plane of each channel, scored on a central tile of
+     *                         all z-slices ; false to download only the middle one
+     * @param readAllFrames true to download all time points ; false to download only the middle one
+     * @param sessionPool pool of connections used to download the next images in parallel ; null to download
+     *                    images one by one with the main connection
+     * @param imageCache local cache of downloaded images ; null to always download images
+     */
+    public OMERORetriever(Client client, boolean isMicAtProjectLevel, boolean isPlaneRetrieval, boolean selectFocusPlane,
+                          boolean readAllFrames, OMEROSessionPool sessionPool, ImageCache imageCache){
         this.client = client;
+        this.sessionPool = sessionPool;
+        this.imageCache = imageCache;
         this.isMicAtProjectLevel = isMicAtProjectLevel;
+        this.isPlaneRetrieval = isPlaneRetrieval;
+        this.selectFocusPlane = selectFocusPlane;
+        this.readAllFrames = readAllFrames;
     }
 
     /**
@@ -83,6 +145,23 @@ public class OMERORetriever implements Retriever {
      */
     @Override
     public boolean loadImages(String parentTarget, String microscopeName, boolean processAllRawImages, String argoSlideName) {
+        return loadImages(parentTarget, microscopeName, processAllRawImages, argoSlideName, null);
+    }
+
+    /**
+     * Retrieve from OMERO images that need to be processed, among the images selected by a query.
+     *
+     * @param parentTarget where to look for images
+     * @param microscopeName name of the dataset where to look for images (corresponding to the microscope name)
+     * @param processAllRawImages true if you want to process all images within the dataset, regardless if
+     *                            they have already been processed one.
+     * @param argoSlideName Name of the selected ArgoSlide
+     * @param imageQuery selection of images within the dataset (IDs, tag, acquisition dates), resolved on the server ;
+     *                   null or empty to list all images of the dataset
+     * @return true if images have been loaded
+     */
+    public boolean loadImages(String parentTarget, String microscopeName, boolean processAllRawImages, String argoSlideName,
+                              OMEROImageQuery imageQuery) {
         this.processAllRawImages = processAllRawImages;
         String datasetName;
         String projectName;
@@ -116,7 +195,11 @@ public class OMERORetriever implements Retriever {
                 IJLogger.info("Load OMERO images","Images downloaded from dataset : " + datasetWrapper.getName());
                 this.datasetId = datasetWrapper.getId();
 
-                List<ImageWrapper> imageWrapperList = datasetWrapper.getImages(this.client);
+                List<ImageWrapper> imageWrapperList;
+                if(imageQuery == null || imageQuery.isEmpty())
+                    imageWrapperList = datasetWrapper.getImages(this.client);
+                else
+                    imageWrapperList = queryImages(this.datasetId, imageQuery);
                 this.images = filterImages(imageWrapperList, processAllRawImages, argoSlideName, microscopeName.replace("_",""));
                 return true;
 
@@ -132,8 +215,9 @@ public class OMERORetriever implements Retriever {
     }
 
     /**
-     * Filter the list of images by removing macro images, heat maps (i.e. every image tagged with "processed" tag)
-     * and optionally by removing images that have already been processed (tagged with "raw" tag).
+     * Filter the list of images by removing macro images, images that do not follow the naming convention,
+     * heat maps (i.e. every image tagged with "processed" tag) and optionally by removing images that have already
+     * been processed (tagged with "raw" tag).
      *
      * @param imageWrapperList List of image to filter
      * @param processAllRawImages true if you want to process all images within the dataset, regardless if
@@ -145,21 +229,22 @@ public class OMERORetriever implements Retriever {
     private Map<String,ImageWrapper> filterImages(List<ImageWrapper> imageWrapperList, boolean processAllRawImages,
                                                   String argoSlideName, String microscopeName) {
 
+        // get the raw / processed tags of all images at once
+        Map<Long, List<String>> imageTags = getRawAndProcessedTags(imageWrapperList);
+
         // get all images without the tags "raw" nor "process" and remove macro images from vsi files.
         List<ImageWrapper> filteredWrappers = imageWrapperList.stream().filter(e -> {
-            try {
-                if (!processAllRawImages)
-                    return (e.getTags(this.client).stream().noneMatch(t -> (t.getName().equals(Tools.RAW_TAG) || t.getName().equals(Tools.PROCESSED_TAG)))
-                            && !(e.getName().contains("[macro image]")) && (e.getName().toLowerCase().contains(argoSlideName.toLowerCase()))
-                            && (microscopeName.toLowerCase().contains(e.getName().split("_")[0].toLowerCase())));
-                else
-                    return (e.getTags(this.client).stream().noneMatch(t -> t.getName().equals(Tools.PROCESSED_TAG))
-                            && !(e.getName().contains("[macro image]")) && (e.getName().toLowerCase().contains(argoSlideName.toLowerCase()))
-                            && (microscopeName.toLowerCase().contains(e.getName().split("_")[0].toLowerCase())));
-            } catch (ServiceException | AccessException | ExecutionException ex) {
-                throw new RuntimeException(ex);
-            }
-
+            List<String> tags = imageTags.getOrDefault(e.getId(), Collections.emptyList());
+            if (!processAllRawImages)
+                return (tags.stream().noneMatch(t -> (t.equals(Tools.RAW_TAG) || t.equals(Tools.PROCESSED_TAG)))
+                        && !(e.getName().contains("[macro image]")) && ImageFile.isNameValid(e.getName())
+                        && (e.getName().toLowerCase().contains(argoSlideName.toLowerCase()))
+                        && (microscopeName.toLowerCase().contains(e.getName().split("_")[0].toLowerCase())));
+            else
+                return (tags.stream().noneMatch(t -> t.equals(Tools.PROCESSED_TAG))
+                        && !(e.getName().contains("[macro image]")) && ImageFile.isNameValid(e.getName())
+                        && (e.getName().toLowerCase().contains(argoSlideName.toLowerCase()))
+                        && (microscopeName.toLowerCase().contains(e.getName().split("_")[0].toLowerCase())));
         }).collect(Collectors.toList());
 
         Map<String,ImageWrapper> imageWrapperMap = new HashMap<>();
@@ -168,6 +253,67 @@ public class OMERORetriever implements Retriever {
         return imageWrapperMap;
     }
 
+    /**
+     * Get the images of a dataset selected by a query. Image IDs are selected on the server, then only the selected
+     * images are loaded.
+     *
+     * @param datasetId dataset containing the images
+     * @param imageQuery selection of images
+     * @return the selected images
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     * @throws ServiceException
+     * @throws AccessException
+     * @throws ExecutionException
+     */
+    private List<ImageWrapper> queryImages(long datasetId, OMEROImageQuery imageQuery)
+            throws DSOutOfServiceException, ServerError, ServiceException, AccessException, ExecutionException {
+        List<List<RType>> rows = this.client.getGateway().getQueryService(this.client.getCtx())
+                .projection(imageQuery.toHql(), imageQuery.getParameters(datasetId));
+        Long[] ids = rows.stream().map(row -> ((RLong) row.get(0)).getValue()).toArray(Long[]::new);
+        IJLogger.info("Load OMERO images", ids.length + " image(s) selected on the server (" + imageQuery + ")");
+
+        if(ids.length == 0)
+            return Collections.emptyList();
+        return this.client.getImages(ids);
+    }
+
+    /**
+     * Query, in a single request, the "raw" and "processed" tags linked to a list of images.
+     *
+     * @param imageWrapperList images to check
+     * @return for each tagged image id, the list of its raw / processed tags
+     */
+    private Map<Long, List<String>> getRawAndProcessedTags(List<ImageWrapper> imageWrapperList){
+        Map<Long, List<String>> imageTags = new HashMap<>();
+        if(imageWrapperList.isEmpty())
+            return imageTags;
+
+        String query = "select link.parent.id, tag.textValue from ImageAnnotationLink link join link.child tag " +
+                "where tag.class = TagAnnotation and tag.textValue in (:names) and link.parent.id in (:ids)";
+        ParametersI params = new ParametersI();
+        params.addIds(imageWrapperList.stream().map(ImageWrapper::getId).collect(Collectors.toList()));
+        params.map.put("names", rlist(rstring(Tools.RAW_TAG), rstring(Tools.PROCESSED_TAG)));
+
+        try {
+            List<List<RType>> rows = this.client.getGateway().getQueryService(this.client.getCtx())
+                    .projection(query, params);
+            for(List<RType> row : rows)
+                imageTags.computeIfAbsent(((RLong) row.get(0)).getValue(), k -> new ArrayList<>())
+                        .add(((RString) row.get(1)).getValue());
+        } catch (DSOutOfServiceException | ServerError e) {
+            IJLogger.warn("Load OMERO images", "Cannot query tags of the dataset in a single request ; tags are read image by image");
+            for(ImageWrapper image : imageWrapperList){
+                try {
+                    imageTags.put(image.getId(), image.getTags(this.client).stream()
+                            .map(TagAnnotationWrapper::getName).collect(Collectors.toList()));
+                } catch (ServiceException | AccessException | ExecutionException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        }
+        return imageTags;
+    }
 
     /**
      * @param key image position in the list
@@ -185,18 +331,192 @@ public class OMERORetriever implements Retriever {
 
     @Override
     public List<ImagePlus> getImage(String key) {
+        if(this.images.get(key) == null)
+            return null;
+        if(this.sessionPool == null || !this.sessionPool.isEnabled())
+            return download(key, this.client);
+
+        // start the download of the current and next images, up to the number of connections
+        if(this.downloadExecutor == null)
+            this.downloadExecutor = Executors.newFixedThreadPool(this.sessionPool.getSize());
+        List<String> ids = getIDs();
+        int pos = ids.indexOf(key);
+        for(int i = pos; i < Math.min(ids.size(), pos + this.sessionPool.getSize()); i++){
+            String id = ids.get(i);
+            if(!this.downloads.containsKey(id))
+                this.downloads.put(id, this.downloadExecutor.submit(() -> {
+                    Client pooledClient = this.sessionPool.acquire();
+                    try {
+                        return download(id, pooledClient);
+                    } finally {
+                        this.sessionPool.release(pooledClient);
+                    }
+                }));
+        }
+
+        try {
+            return this.downloads.remove(key).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Download an image
+     *
+     * @param key image id
+     * @param client connection to use
+     * @return the downloaded image
+     */
+    private List<ImagePlus> download(String key, Client client){
+        ImageWrapper impWpr = this.images.get(key);
+
+        // look for the image in the local cache
+        String cacheKey = getCacheKey(impWpr);
+        if(this.imageCache != null) {
+            ImagePlus cachedImp = this.imageCache.get(cacheKey);
+            if(cachedImp != null) {
+                IJLogger.info("Load OMERO images", impWpr.getName() + " is read from the local cache");
+                cachedImp.setTitle(impWpr.getName());
+                return Collections.singletonList(cachedImp);
+            }
+        }
+
         // open the image on ImageJ
         try {
-            ImageWrapper impWpr = this.images.get(key);
-            if(impWpr == null)
-                return null;
+            ImagePlus imp;
+            if(this.isPlaneRetrieval)
+                imp = getPlanes(impWpr, client);
             else
-                return Collections.singletonList(impWpr.toImagePlus(this.client));
+                imp = impWpr.toImagePlus(client);
+
+            if(this.imageCache != null)
+                this.imageCache.put(cacheKey, imp);
+            // same title as images read from the cache
+            imp.setTitle(impWpr.getName());
+            return Collections.singletonList(imp);
         }catch(AccessException | ServiceException | ExecutionException e){
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @param impWpr image
+     * @return a key identifying the downloaded content : image id, last update and selected planes
+     */
+    private String getCacheKey(ImageWrapper impWpr){
+        Timestamp updated = impWpr.asDataObject().getUpdated();
+        String planes = !this.isPlaneRetrieval ? "all" :
+                ("z" + (this.selectFocusPlane ? "focus" : "mid") + "_t" + (this.readAllFrames ? "all" : "mid"));
+        return impWpr.getId() + "_" + (updated == null ? 0 : updated.getTime()) + "_" + planes;
+    }
+
+    /**
+     * Download only the planes needed by the processing, from the raw pixels service. Channels are downloaded
+     * one after another and merged in a single hyperstack. When the best focus plane is selected, a central tile of
+     * all z-slices is first downloaded to score the focus, and only the selected plane is then downloaded
+     * at full resolution.
+     *
+     * @param impWpr image to download
+     * @param client connection to use
+     * @return the image with the selected planes
+     * @throws AccessException
+     * @throws ServiceException
+     * @throws ExecutionException
+     */
+    private ImagePlus getPlanes(ImageWrapper impWpr, Client client) throws AccessException, ServiceException, ExecutionException {
+        PixelsWrapper pixels = impWpr.getPixels();
+        int sizeC = pixels.getSizeC();
+        int sizeZ = pixels.getSizeZ();
+        int sizeT = pixels.getSizeT();
+
+        // select time points
+        final int[] xBounds = {0, pixels.getSizeX() - 1};
+        final int[] yBounds = {0, pixels.getSizeY() - 1};
+        final int[] midZBounds = {(sizeZ - 1) / 2, (sizeZ - 1) / 2};
+        final int[] tBounds = this.readAllFrames ? new int[]{0, sizeT - 1} : new int[]{(sizeT - 1) / 2, (sizeT - 1) / 2};
+        boolean isFocusSearch = this.selectFocusPlane && sizeZ > 1;
+        IJLogger.info("Load OMERO images", "Download " + impWpr.getName() + " : " + sizeC + " channel(s), z = " +
+                (isFocusSearch ? "best focus" : String.valueOf(midZBounds[0])) + ", t = [" + tBounds[0] + "-" + tBounds[1] + "]");
+
+        // download channels one after another ; concurrency only comes from the session pool, so that the number
+        // of pixel streams open on the server never exceeds the number of connections
+        List<ImagePlus> channels = new ArrayList<>();
+        int[] focusPlanes = new int[sizeC];
+        for(int c = 0; c < sizeC; c++){
+            final int[] cBounds = {c, c};
+            int[] zBounds = midZBounds;
+            if(isFocusSearch) {
+                int z = getBestFocusPlane(impWpr, client, pixels, c);
+                zBounds = new int[]{z, z};
+                focusPlanes[c] = z + 1;
+            }
+            channels.add(impWpr.toImagePlus(client, xBounds, yBounds, cBounds, zBounds, tBounds));
+        }
+
+        // merge channels in the ImageJ (c, z, t) order
+        ImagePlus firstChannel = channels.get(0);
+        int nSlices = firstChannel.getNSlices();
+        int nFrames = firstChannel.getNFrames();
+        ImageStack stack = new ImageStack(firstChannel.getWidth(), firstChannel.getHeight());
+        for(int t = 1; t <= nFrames; t++)
+            for(int z = 1; z <= nSlices; z++)
+                for(ImagePlus channel : channels)
+                    stack.addSlice(channel.getStack().getProcessor(channel.getStackIndex(1, z, t)));
+
+        ImagePlus imp = new ImagePlus(firstChannel.getTitle(), stack);
+        imp.setDimensions(sizeC, nSlices, nFrames);
+        imp.setCalibration(firstChannel.getCalibration());
+        if(sizeC > 1)
+            imp.setOpenAsHyperStack(true);
+
+        // keep the z position of the downloaded planes (1-based), as image properties are saved in the cache
+        if(isFocusSearch) {
+            for(int c = 0; c < sizeC; c++)
+                imp.setProp(Tools.FOCUS_PLANE_PROPERTY + c, focusPlanes[c]);
+        }
+        return imp;
+    }
+
+    /**
+     * Find the sharpest z-plane of a channel at the middle time point, by downloading only a central tile of
+     * each z-slice. The normalized variance of the tile is used as focus metric.
+     *
+     * @param impWpr image to download
+     * @param client connection to use
+     * @param pixels pixels of the image
+     * @param channel channel to focus on (0-based)
+     * @return the z position of the sharpest plane (0-based)
+     * @throws AccessException
+     * @throws ServiceException
+     * @throws ExecutionException
+     */
+    private static int getBestFocusPlane(ImageWrapper impWpr, Client client, PixelsWrapper pixels, int channel)
+            throws AccessException, ServiceException, ExecutionException {
+        Rectangle region = Tools.getFocusRegion(pixels.getSizeX(), pixels.getSizeY());
+        final int[] xBounds = {region.x, region.x + region.width - 1};
+        final int[] yBounds = {region.y, region.y + region.height - 1};
+        final int[] cBounds = {channel, channel};
+        final int[] zBounds = {0, pixels.getSizeZ() - 1};
+        final int[] tBounds = {(pixels.getSizeT() - 1) / 2, (pixels.getSizeT() - 1) / 2};
+        ImagePlus tiles = impWpr.toImagePlus(client, xBounds, yBounds, cBounds, zBounds, tBounds);
+
+        Rectangle tileRegion = new Rectangle(0, 0, tiles.getWidth(), tiles.getHeight());
+        int bestPlane = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for(int z = 1; z <= tiles.getNSlices(); z++){
+            double score = Tools.computeNormalizedVariance(tiles.getStack().getProcessor(tiles.getStackIndex(1, z, 1)), tileRegion);
+            if(score > bestScore) {
+                bestScore = score;
+                bestPlane = z - 1;
+            }
+        }
+        return bestPlane;
+    }
+
     @Override
     public int getNImages() {
         return this.images.size();
@@ -217,4 +537,15 @@ public class OMERORetriever implements Retriever {
         return this.processAllRawImages;
     }
 
+    @Override
+    public void close() {
+        if(this.downloadExecutor != null) {
+            this.downloadExecutor.shutdownNow();
+            this.downloadExecutor = null;
+        }
+        this.downloads.clear();
+        if(this.sessionPool != null)
+            this.sessionPool.close();
+    }
+
 }
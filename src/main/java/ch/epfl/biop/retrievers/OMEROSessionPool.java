@@ -0,0 +1,115 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.ServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Small pool of OMERO connections that join the session of the logged-in client. No new credentials are needed.
+ * <p>
+ * The number of connections caps the number of concurrent downloads, to protect the server. Connections are opened
+ * on first use ; if a connection cannot be opened, the pool is disabled and images are downloaded one at a time by
+ * the calling thread, with the logged-in client.
+ */
+public class OMEROSessionPool {
+    final private Client client;
+    final private String host;
+    final private int port;
+    private int size;
+    final private BlockingQueue<Client> available = new LinkedBlockingQueue<>();
+    final private List<Client> joinedClients = new ArrayList<>();
+    private boolean isInitialized = false;
+    private boolean isEnabled = true;
+
+    /**
+     * @param client logged-in client
+     * @param host OMERO host
+     * @param port OMERO port
+     * @param size maximal number of concurrent connections
+     */
+    public OMEROSessionPool(Client client, String host, int port, int size){
+        this.client = client;
+        this.host = host;
+        this.port = port;
+        this.size = Math.max(1, size);
+    }
+
+    /**
+     * @return the maximal number of concurrent connections
+     */
+    public int getSize(){ return this.size; }
+
+    /**
+     * Open the connections if not already done
+     *
+     * @return true if the pool can be used ; false if the session cannot be joined
+     */
+    public boolean isEnabled(){
+        initialize();
+        return this.isEnabled;
+    }
+
+    /**
+     * Borrow a connection, waiting until one is available.
+     * The connection has to be given back with {@link #release(Client)}.
+     *
+     * @return a connection on the session of the logged-in client
+     * @throws InterruptedException
+     */
+    public Client acquire() throws InterruptedException {
+        initialize();
+        return this.available.take();
+    }
+
+    /**
+     * Give back a borrowed connection
+     * @param client
+     */
+    public void release(Client client){
+        this.available.offer(client);
+    }
+
+    /**
+     * Close the connections opened by the pool. The session of the logged-in client stays open.
+     */
+    public synchronized void close(){
+        this.joinedClients.forEach(Client::disconnect);
+        this.joinedClients.clear();
+        this.available.clear();
+        this.isInitialized = false;
+        this.isEnabled = true;
+    }
+
+    /**
+     * open the connections, joining the session of the logged-in client
+     */
+    private synchronized void initialize(){
+        if(this.isInitialized)
+            return;
+
+        for(int i = 0; i < this.size; i++){
+            try {
+                String sessionId = this.client.getSessionId();
+                Client joinedClient = new Client();
+                joinedClient.connect(this.host, this.port, sessionId);
+                this.joinedClients.add(joinedClient);
+                this.available.offer(joinedClient);
+            } catch (ServiceException e) {
+                // the main connection cannot be shared with download threads
+                IJLogger.warn("OMERO session pool", "Cannot join the current session ; parallel download is disabled " +
+                        "and images are downloaded one at a time with the main connection");
+                this.joinedClients.forEach(Client::disconnect);
+                this.joinedClients.clear();
+                this.available.clear();
+                this.isEnabled = false;
+                break;
+            }
+        }
+        this.isInitialized = true;
+    }
+}
@@ -0,0 +1,149 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the local images already processed, read once from the summary file of processed images.
+ * <p>
+ * Each entry of the summary file is "series title,file name,file size,last modification,content fingerprint".
+ * A series is processed if its title is in the index with the same file size and last modification, so that a
+ * modified file is processed again. A file is also processed if a file with the same content fingerprint has
+ * been processed (copied, renamed or re-exported file). Entries written by older versions only contain the series
+ * title ; they match on the title only.
+ * <p>
+ * Titles and file names are escaped ("%" as "%25" and "," as "%2C"), so that they can contain the separator.
+ */
+public class ProcessedImageIndex {
+    final private static String SEPARATOR = ",";
+    final private Map<String, String> seriesSignatures = new HashMap<>();
+    final private Map<String, String> fileSignatures = new HashMap<>();
+    final private Set<String> fingerprints = new HashSet<>();
+
+    /**
+     * @return an empty index
+     */
+    public static ProcessedImageIndex empty(){
+        return new ProcessedImageIndex();
+    }
+
+    /**
+     * Read the summary file of processed images
+     *
+     * @param summaryFile summary file of processed images
+     * @return the index of the processed images ; empty if the file cannot be read
+     */
+    public static ProcessedImageIndex load(File summaryFile){
+        ProcessedImageIndex index = new ProcessedImageIndex();
+        try (BufferedReader br = new BufferedReader(new FileReader(summaryFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                String[] fields = line.split(SEPARATOR, -1);
+                if ((fields.length == 4 || fields.length == 5) && isNumber(fields[2]) && isNumber(fields[3])) {
+                    String signature = fields[2] + "_" + fields[3];
+                    index.seriesSignatures.put(unescape(fields[0]), signature);
+                    index.fileSignatures.put(unescape(fields[1]), signature);
+                    if (fields.length == 5 && !fields[4].isEmpty() && !fields[4].equals("null"))
+                        index.fingerprints.add(fields[4]);
+                } else {
+                    index.seriesSignatures.put(line, "");
+                }
+            }
+        } catch (IOException e) {
+            IJLogger.warn("Load local images", "Cannot read " + summaryFile.getName() + ". All images will be processed");
+            return new ProcessedImageIndex();
+        }
+        return index;
+    }
+
+    /**
+     * @param imageFile raw image file
+     * @return true if the file, with its current size and last modification, has already been processed
+     */
+    public synchronized boolean isFileProcessed(File imageFile){
+        return getSignature(imageFile).equals(this.fileSignatures.get(imageFile.getName())) ||
+                "".equals(this.seriesSignatures.get(imageFile.getName()));
+    }
+
+    /**
+     * @param fingerprint content fingerprint of a raw image file
+     * @return true if a file with the same content has already been processed
+     */
+    public synchronized boolean isContentProcessed(String fingerprint){
+        return fingerprint != null && this.fingerprints.contains(fingerprint);
+    }
+
+    /**
+     * @param title title of the series
+     * @param imageFile raw image file containing the series
+     * @return true if the series has already been processed
+     */
+    public synchronized boolean isSeriesProcessed(String title, File imageFile){
+        String signature = this.seriesSignatures.get(title);
+        return signature != null && (signature.isEmpty() || signature.equals(getSignature(imageFile)));
+    }
+
+    /**
+     * Add a newly processed series to the index
+     *
+     * @param title title of the series
+     * @param imageFile raw image file containing the series
+     * @param fingerprint content fingerprint of the raw image file
+     */
+    public synchronized void add(String title, File imageFile, String fingerprint){
+        String signature = getSignature(imageFile);
+        this.seriesSignatures.put(title, signature);
+        this.fileSignatures.put(imageFile.getName(), signature);
+        if(fingerprint != null)
+            this.fingerprints.add(fingerprint);
+    }
+
+    /**
+     * @param title title of the series
+     * @param imageFile raw image file containing the series
+     * @param fingerprint content fingerprint of the raw image file ; null if it could not be computed
+     * @return the entry of the series to write in the summary file
+     */
+    public static String toEntry(String title, File imageFile, String fingerprint){
+        return escape(title) + SEPARATOR + escape(imageFile.getName()) + SEPARATOR + imageFile.length() + SEPARATOR +
+                imageFile.lastModified() + SEPARATOR + (fingerprint == null ? "" : fingerprint);
+    }
+
+    /**
+     * @return the number of processed series
+     */
+    public synchronized int size(){
+        return this.seriesSignatures.size();
+    }
+
+    private static String escape(String field){
+        return field.replace("%", "%25").replace(SEPARATOR, "%2C");
+    }
+
+    private static String unescape(String field){
+        return field.replace("%2C", SEPARATOR).replace("%25", "%");
+    }
+
+    private static boolean isNumber(String field){
+        if(field.isEmpty())
+            return false;
+        for(char c : field.toCharArray())
+            if(!Character.isDigit(c) && c != '-')
+                return false;
+        return true;
+    }
+
+    private static String getSignature(File imageFile){
+        return imageFile.length() + "_" + imageFile.lastModified();
+    }
+}
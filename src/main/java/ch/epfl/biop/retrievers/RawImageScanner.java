@@ -0,0 +1,89 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Recursive discovery of raw images in a folder tree (e.g. microscope/year/month).
+ * <p>
+ * Sub-folders are listed in parallel with a fork-join pool, which hides the latency of network shares. File names are
+ * filtered while listing, so that only candidate images are kept. Hidden files and folders, and symbolic links to
+ * folders, are ignored.
+ */
+public class RawImageScanner {
+    final private static int MAX_PARALLEL_LISTINGS = 8;
+
+    private RawImageScanner(){
+
+    }
+
+    /**
+     * List all the files of the folder tree whose name passes the filter
+     *
+     * @param rootFolder root of the folder tree
+     * @param fileNameFilter filter on file names
+     * @return the files found, sorted by path
+     */
+    public static List<File> scan(File rootFolder, Predicate<String> fileNameFilter){
+        ForkJoinPool pool = new ForkJoinPool(MAX_PARALLEL_LISTINGS);
+        try {
+            List<File> files = pool.invoke(new FolderScan(rootFolder.toPath(), fileNameFilter));
+            files.sort(Comparator.comparing(File::getAbsolutePath));
+            return files;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * list one folder and fork the listing of its sub-folders
+     */
+    private static class FolderScan extends RecursiveTask<List<File>> {
+        final private Path folder;
+        final private Predicate<String> fileNameFilter;
+
+        FolderScan(Path folder, Predicate<String> fileNameFilter){
+            this.folder = folder;
+            this.fileNameFilter = fileNameFilter;
+        }
+
+        @Override
+        protected List<File> compute() {
+            List<File> files = new ArrayList<>();
+            List<FolderScan> subFolderScans = new ArrayList<>();
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    if (name.startsWith("."))
+                        continue;
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        FolderScan subFolderScan = new FolderScan(path, this.fileNameFilter);
+                        subFolderScan.fork();
+                        subFolderScans.add(subFolderScan);
+                    } else if (this.fileNameFilter.test(name) && Files.isRegularFile(path)) {
+                        files.add(path.toFile());
+                    }
+                }
+            } catch (IOException e) {
+                IJLogger.warn("Load local images", "Cannot list the folder " + this.folder + " ; it is skipped");
+            }
+
+            for (FolderScan subFolderScan : subFolderScans)
+                files.addAll(subFolderScan.join());
+            return files;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.plugins.util.ImageProcessorReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of opened Bio-Formats readers, shared by all the series of a file.
+ * <p>
+ * Readers are keyed by file path and modification time, so that a modified file is parsed again. Parsed headers
+ * are also memoized on disk with a Bio-Formats {@link Memoizer}, so that re-runs on the same files skip the header
+ * parsing of large containers (.lif, .vsi, .czi...).
+ * <p>
+ * The strip layout of uncompressed TIFF files is kept next to their reader, so that it is only parsed once per file.
+ * <p>
+ * Readers are not thread-safe ; callers have to synchronize on the returned reader.
+ */
+public class ReaderPool {
+    final private static int MAX_OPENED_READERS = 4;
+    final private static File CACHE_FOLDER = new File("." + File.separator + "plugins" + File.separator + "BIOP" +
+            File.separator + "bfmemo");
+
+    final private static Map<String, ImageProcessorReader> READERS = new LinkedHashMap<String, ImageProcessorReader>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImageProcessorReader> eldest) {
+            if(size() > MAX_OPENED_READERS) {
+                closeReader(eldest.getValue());
+                TIFF_PLANES.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // file key -> planes of uncompressed TIFF files ; null value if the file is not supported
+    final private static Map<String, UncompressedTiffPlanes> TIFF_PLANES = new HashMap<>();
+
+    private ReaderPool(){
+
+    }
+
+    /**
+     * Get the opened reader of a file, or open a new one if the file has not been opened yet or has been modified.
+     * The reader is initialized with an OME-XML metadata store.
+     *
+     * @param file image file to read
+     * @return the reader of the file
+     * @throws FormatException
+     * @throws IOException
+     */
+    public static synchronized ImageProcessorReader getReader(File file) throws FormatException, IOException {
+        String path = file.getAbsolutePath();
+        String key = path + "_" + file.lastModified();
+
+        ImageProcessorReader reader = READERS.get(key);
+        if(reader != null)
+            return reader;
+
+        // close readers of previous versions of the file
+        Iterator<Map.Entry<String, ImageProcessorReader>> iterator = READERS.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<String, ImageProcessorReader> entry = iterator.next();
+            if(entry.getKey().startsWith(path + "_")){
+                closeReader(entry.getValue());
+                TIFF_PLANES.remove(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        if(!CACHE_FOLDER.exists() && !CACHE_FOLDER.mkdirs())
+            IJLogger.warn("Reader pool", "Cannot create the cache folder "+CACHE_FOLDER.getAbsolutePath());
+
+        // memoize the parsed headers, whatever the time needed to parse them
+        reader = new ImageProcessorReader(new ChannelSeparator(new Memoizer(new ImageReader(), 0, CACHE_FOLDER)));
+        reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        reader.setId(path);
+        READERS.put(key, reader);
+        return reader;
+    }
+
+    /**
+     * Get the planes of an uncompressed TIFF file, parsed on first call only
+     *
+     * @param file image file
+     * @param reader reader of the file, from {@link #getReader(File)}
+     * @return the planes of the file, or null if the file is not supported by {@link UncompressedTiffPlanes}
+     */
+    public static synchronized UncompressedTiffPlanes getTiffPlanes(File file, ImageProcessorReader reader){
+        String key = file.getAbsolutePath() + "_" + file.lastModified();
+        if(!TIFF_PLANES.containsKey(key))
+            TIFF_PLANES.put(key, UncompressedTiffPlanes.open(file, reader));
+        return TIFF_PLANES.get(key);
+    }
+
+    /**
+     * Close all opened readers. Memoized headers are kept on disk.
+     */
+    public static synchronized void closeAll(){
+        READERS.values().forEach(ReaderPool::closeReader);
+        READERS.clear();
+        TIFF_PLANES.clear();
+    }
+
+    private static void closeReader(ImageProcessorReader reader){
+        try {
+            reader.close();
+        } catch (IOException e) {
+            IJLogger.warn("Reader pool", "Cannot close the reader of "+reader.getCurrentFile());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package ch.epfl.biop.retrievers;
 
 import ij.ImagePlus;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -22,6 +23,17 @@ public interface Retriever {
      */
     List<ImagePlus> getImage(String index);
 
+    /**
+     * Read the series of an image one at a time, only when the next one is requested, so that only the series
+     * being processed is kept in memory. Skipped series are returned as null, to keep the series position.
+     *
+     * @param index image position in the list
+     * @return an iterator on the {@link ImagePlus} objects read from the image file (i.e. image series)
+     */
+    default Iterator<ImagePlus> iterateImage(String index){
+        return getImage(index).iterator();
+    }
+
     /**
      * @return the number of an images to process.
      */
@@ -41,4 +53,9 @@ public interface Retriever {
      * @return true if you want to process all available images, regardless if they have already been processed
      */
     boolean isProcessingAllRawImages();
+
+    /**
+     * Release the resources (opened files, connections...) used to retrieve images
+     */
+    void close();
 }
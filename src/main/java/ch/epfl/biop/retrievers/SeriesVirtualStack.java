@@ -0,0 +1,149 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * Virtual stack of one series of a file, in the ImageJ (c, z, t) order.
+ * Planes are only decoded when they are requested, with a reader of the {@link ReaderPool}.
+ */
+public class SeriesVirtualStack extends VirtualStack {
+    final private ImageProcessorReader reader;
+    final private int series;
+    final private int nChannels;
+    final private int nSlices;
+    final private int nFrames;
+    final private int bitDepth;
+    final private UncompressedTiffPlanes tiffPlanes;
+
+    /**
+     * @param reader initialized reader of the file
+     * @param series series to read
+     */
+    public SeriesVirtualStack(ImageProcessorReader reader, int series){
+        this(reader, series, null);
+    }
+
+    /**
+     * @param reader initialized reader of the file
+     * @param series series to read
+     * @param tiffPlanes planes of an uncompressed TIFF file, or null to decode planes with the reader
+     */
+    public SeriesVirtualStack(ImageProcessorReader reader, int series, UncompressedTiffPlanes tiffPlanes){
+        super(getSizeX(reader, series), getSizeY(reader, series), null, reader.getCurrentFile());
+        this.reader = reader;
+        this.series = series;
+        this.tiffPlanes = tiffPlanes;
+        synchronized (reader) {
+            reader.setSeries(series);
+            this.nChannels = reader.getSizeC();
+            this.nSlices = reader.getSizeZ();
+            this.nFrames = reader.getSizeT();
+            // 8 and 16-bit planes keep their type, all other types are read as float
+            int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+            this.bitDepth = bytesPerPixel <= 2 && !FormatTools.isFloatingPoint(reader.getPixelType()) ? 8 * bytesPerPixel : 32;
+        }
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        int c = (n - 1) % this.nChannels;
+        int z = ((n - 1) / this.nChannels) % this.nSlices;
+        int t = (n - 1) / (this.nChannels * this.nSlices);
+
+        // uncompressed TIFF planes can be read concurrently, without locking the reader
+        if(this.tiffPlanes != null) {
+            int plane;
+            synchronized (this.reader) {
+                this.reader.setSeries(this.series);
+                plane = this.reader.getIndex(z, c, t);
+            }
+            return this.tiffPlanes.readPlane(plane);
+        }
+
+        synchronized (this.reader) {
+            try {
+                this.reader.setSeries(this.series);
+                return this.reader.openProcessors(this.reader.getIndex(z, c, t))[0];
+            } catch (FormatException | IOException e) {
+                IJLogger.error("Read plane", "Cannot read plane "+n+" of series "+this.series+" in "+this.reader.getCurrentFile(), e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Read only a region of a plane. The reader decodes the strips or tiles covering the region, instead of the whole
+     * plane.
+     *
+     * @param n plane position in the stack (1-based)
+     * @param region region to read
+     * @return the processor of the region, or null if it cannot be read
+     */
+    public ImageProcessor getProcessor(int n, Rectangle region) {
+        int c = (n - 1) % this.nChannels;
+        int z = ((n - 1) / this.nChannels) % this.nSlices;
+        int t = (n - 1) / (this.nChannels * this.nSlices);
+
+        synchronized (this.reader) {
+            try {
+                this.reader.setSeries(this.series);
+                return this.reader.openProcessors(this.reader.getIndex(z, c, t), region.x, region.y, region.width, region.height)[0];
+            } catch (FormatException | IOException e) {
+                IJLogger.error("Read plane", "Cannot read a region of plane "+n+" of series "+this.series+" in "+this.reader.getCurrentFile(), e);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return this.nChannels * this.nSlices * this.nFrames;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return this.bitDepth;
+    }
+
+    /**
+     * @return the number of channels of the series
+     */
+    public int getNChannels(){ return this.nChannels; }
+
+    /**
+     * @return the number of z-slices of the series
+     */
+    public int getNSlices(){ return this.nSlices; }
+
+    /**
+     * @return the number of frames of the series
+     */
+    public int getNFrames(){ return this.nFrames; }
+
+    private static int getSizeX(ImageProcessorReader reader, int series){
+        synchronized (reader) {
+            reader.setSeries(series);
+            return reader.getSizeX();
+        }
+    }
+
+    private static int getSizeY(ImageProcessorReader reader, int series){
+        synchronized (reader) {
+            reader.setSeries(series);
+            return reader.getSizeY();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package ch.epfl.biop.retrievers;
+
+import ch.epfl.biop.utils.IJLogger;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.plugins.util.ImageProcessorReader;
+import ome.xml.model.primitives.NonNegativeInteger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fast access to the planes of uncompressed TIFF / OME-TIFF files.
+ * <p>
+ * The strips of a plane are read with a single positional read into a reused buffer and copied into the pixel array
+ * of the processor, without any decoding by Bio-Formats. The file is only opened during the read, so that it is never
+ * kept locked (e.g. on Windows, where an opened file cannot be moved or deleted).
+ * <p>
+ * Only single-file, single-series, grayscale 8-bit, 16-bit or float images stored in uncompressed strips are
+ * supported. Other files are read with Bio-Formats.
+ */
+public class UncompressedTiffPlanes {
+    final private File file;
+    final private int width;
+    final private int height;
+    final private int pixelType;
+    final private ByteOrder byteOrder;
+    final private long[][] stripOffsets;
+    final private long[][] stripByteCounts;
+    // read buffer, reused between the planes read by the same thread
+    final private ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(0));
+
+    private UncompressedTiffPlanes(File file, int width, int height, int pixelType, ByteOrder byteOrder,
+                             long[][] stripOffsets, long[][] stripByteCounts){
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.pixelType = pixelType;
+        this.byteOrder = byteOrder;
+        this.stripOffsets = stripOffsets;
+        this.stripByteCounts = stripByteCounts;
+    }
+
+    /**
+     * Check if the planes of the file can be read directly and read the position of the strips of each plane.
+     *
+     * @param file image file
+     * @param reader initialized reader of the file
+     * @return the planes, or null if the file is not an uncompressed TIFF supported by the fast path
+     */
+    public static UncompressedTiffPlanes open(File file, ImageProcessorReader reader){
+        String name = file.getName().toLowerCase();
+        if(!(name.endsWith(".tif") || name.endsWith(".tiff")))
+            return null;
+
+        synchronized (reader) {
+            if (reader.getSeriesCount() != 1 || reader.getUsedFiles().length != 1 || !isSequentialTiffData(reader))
+                return null;
+            reader.setSeries(0);
+
+            TiffParser parser = null;
+            try {
+                parser = new TiffParser(file.getAbsolutePath());
+                if (!parser.isValidHeader())
+                    return null;
+
+                IFDList ifds = parser.getIFDs();
+                if (ifds.size() != reader.getImageCount())
+                    return null;
+
+                long[][] offsets = new long[ifds.size()][];
+                long[][] byteCounts = new long[ifds.size()][];
+                for (int i = 0; i < ifds.size(); i++) {
+                    IFD ifd = ifds.get(i);
+                    int type = ifd.getPixelType();
+                    if (ifd.getCompression() != TiffCompression.UNCOMPRESSED || ifd.isTiled() ||
+                            ifd.getSamplesPerPixel() != 1 || ifd.getPhotometricInterpretation() != PhotoInterp.BLACK_IS_ZERO ||
+                            ifd.getImageWidth() != reader.getSizeX() || ifd.getImageLength() != reader.getSizeY() ||
+                            !(type == FormatTools.UINT8 || type == FormatTools.UINT16 || type == FormatTools.FLOAT) ||
+                            type != reader.getPixelType())
+                        return null;
+                    offsets[i] = ifd.getStripOffsets();
+                    byteCounts[i] = ifd.getStripByteCounts();
+                }
+
+                IJLogger.info("Load local images", "Uncompressed TIFF : planes of " + file.getName() + " are read directly");
+                return new UncompressedTiffPlanes(file, reader.getSizeX(), reader.getSizeY(), reader.getPixelType(),
+                        ifds.get(0).isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN,
+                        offsets, byteCounts);
+
+            } catch (FormatException | IOException e) {
+                IJLogger.warn("Load local images", "Cannot read the TIFF structure of " + file.getName() + ". Planes are read with Bio-Formats");
+                return null;
+            } finally {
+                if (parser != null) {
+                    try {
+                        parser.getStream().close();
+                    } catch (IOException e) {
+                        IJLogger.warn("Load local images", "Cannot close " + file.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read one plane by copying its strips in a new processor
+     *
+     * @param plane plane index, in the Bio-Formats order (i.e. IFD index)
+     * @return the processor of the plane, or null if the plane cannot be read
+     */
+    public ImageProcessor readPlane(int plane){
+        long[] offsets = this.stripOffsets[plane];
+        long[] byteCounts = this.stripByteCounts[plane];
+
+        // read the whole span of the plane at once
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (int s = 0; s < offsets.length; s++) {
+            start = Math.min(start, offsets[s]);
+            end = Math.max(end, offsets[s] + byteCounts[s]);
+        }
+        int span = (int) (end - start);
+        ByteBuffer buffer = this.buffers.get();
+        if(buffer.capacity() < span) {
+            buffer = ByteBuffer.allocate(span);
+            this.buffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(span);
+
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of file");
+            }
+        } catch (IOException e) {
+            IJLogger.error("Read plane", "Cannot read plane " + plane + " of " + this.file.getName(), e);
+            return null;
+        }
+        buffer.order(this.byteOrder);
+
+        int nPixels = this.width * this.height;
+        int bytesPerPixel = FormatTools.getBytesPerPixel(this.pixelType);
+        ImageProcessor ip;
+        switch (this.pixelType) {
+            case FormatTools.UINT8: ip = new ByteProcessor(this.width, this.height); break;
+            case FormatTools.UINT16: ip = new ShortProcessor(this.width, this.height); break;
+            default: ip = new FloatProcessor(this.width, this.height); break;
+        }
+
+        // copy strips one after the other in the pixel array
+        int pos = 0;
+        for (int s = 0; s < offsets.length && pos < nPixels; s++) {
+            int stripPixels = (int) Math.min(byteCounts[s] / bytesPerPixel, nPixels - pos);
+            buffer.position((int) (offsets[s] - start));
+            switch (this.pixelType) {
+                case FormatTools.UINT8: buffer.get((byte[]) ip.getPixels(), pos, stripPixels); break;
+                case FormatTools.UINT16: buffer.asShortBuffer().get((short[]) ip.getPixels(), pos, stripPixels); break;
+                default: buffer.asFloatBuffer().get((float[]) ip.getPixels(), pos, stripPixels); break;
+            }
+            pos += stripPixels;
+        }
+        ip.resetMinAndMax();
+        return ip;
+    }
+
+    /**
+     * For OME-TIFF files, check that IFDs are stored in the plane order of the reader
+     *
+     * @param reader initialized reader of the file
+     * @return true if the IFD index is the plane index
+     */
+    private static boolean isSequentialTiffData(ImageProcessorReader reader){
+        if(!(reader.getMetadataStore() instanceof IMetadata))
+            return false;
+        IMetadata metadata = (IMetadata) reader.getMetadataStore();
+        reader.setSeries(0);
+
+        int nTiffData = metadata.getTiffDataCount(0);
+        for (int i = 0; i < nTiffData; i++) {
+            int ifd = getValue(metadata.getTiffDataIFD(0, i), 0);
+            int z = getValue(metadata.getTiffDataFirstZ(0, i), 0);
+            int c = getValue(metadata.getTiffDataFirstC(0, i), 0);
+            int t = getValue(metadata.getTiffDataFirstT(0, i), 0);
+            int planeCount = getValue(metadata.getTiffDataPlaneCount(0, i), nTiffData == 1 ? reader.getImageCount() : 1);
+
+            boolean isSequential = planeCount == 1 ? reader.getIndex(z, c, t) == ifd :
+                    (ifd == 0 && z == 0 && c == 0 && t == 0 && planeCount == reader.getImageCount());
+            if(!isSequential)
+                return false;
+        }
+        return true;
+    }
+
+    private static int getValue(NonNegativeInteger value, int defaultValue){
+        return value == null ? defaultValue : value.getValue();
+    }
+}
@@ -1,6 +1,8 @@
 package ch.epfl.biop.senders;
 
+import ch.epfl.biop.retrievers.LocalRetriever;
 import ch.epfl.biop.retrievers.OMERORetriever;
+import ch.epfl.biop.retrievers.ProcessedImageIndex;
 import ch.epfl.biop.retrievers.Retriever;
 import ch.epfl.biop.utils.IJLogger;
 import ch.epfl.biop.image.ImageFile;
@@ -49,6 +51,9 @@ public class LocalSender implements Sender{
     private ImageWrapper imageWrapper;
     private Client client;
     private boolean updateProcessedImageFile;
+    private ProcessedImageIndex processedIndex;
+    private File rawFile;
+    private String rawFileId;
 
 
     public LocalSender(File target, String microscopeName, boolean cleanTarget, boolean isOmeroRetriever){
@@ -115,6 +120,12 @@ public class LocalSender implements Sender{
         } else {
             this.imageWrapper = null;
             this.client = null;
+            if(retriever instanceof LocalRetriever) {
+                LocalRetriever localRetriever = (LocalRetriever) retriever;
+                this.processedIndex = localRetriever.getProcessedIndex();
+                this.rawFile = localRetriever.getFile(imageFile.getId());
+                this.rawFileId = imageFile.getId();
+            }
             imageFile.removeAllTags();
             imageFile.addTags(imageFile.getTitle());
         }
@@ -244,19 +255,32 @@ public class LocalSender implements Sender{
     @Override
     public void populateParentTable(Retriever retriever, Map<String, List<List<Double>>> summary, List<String> headers, boolean populateExistingTable) {
         IJLogger.info("Update parent table...");
+        if(summary.isEmpty() || headers.isEmpty()) {
+            IJLogger.warn("Update parent table", "No image has been analysed ; the parent table is not updated");
+            return;
+        }
+
         // get the last parent summary table
         File lastTable = getLastLocalTable(this.parentFolder, Tools.PARENT_TABLE_SUFFIX);
-        String text = "";
+        String text = "Image ID,Label";
+        for (String header : headers) {
+            text += "," + header;
+        }
 
-        // add header to new table
-        if(!populateExistingTable || lastTable == null || !lastTable.exists()) {
-            text = "Image ID,Label";
-            for (String header : headers) {
-                text += "," + header;
+        // start a new table if the summary metrics have changed since the last one
+        if(populateExistingTable && lastTable != null && lastTable.exists()) {
+            List<String> lastRows = Tools.readCsvFile(lastTable);
+            if(lastRows.isEmpty() || !lastRows.get(0).equals(text)) {
+                IJLogger.warn("Update parent table", "The columns of "+lastTable.getName()+" do not match the current metrics. A new table is created");
+                populateExistingTable = false;
             }
-            text += "\n";
         }
 
+        // add header to new table
+        if(!populateExistingTable || lastTable == null || !lastTable.exists())
+            text += "\n";
+        else text = "";
+
         // populate table
         List<String> IdList = new ArrayList<>(summary.keySet());
         for (String Id : IdList) {
@@ -313,6 +337,24 @@ public class LocalSender implements Sender{
 
     }
 
+    @Override
+    public void sendTimeSeriesTable(Map<String, List<Double>> timeSeries, int channelId) {
+        IJLogger.info("Sending time series table");
+        List<String> metrics = new ArrayList<>(timeSeries.keySet());
+        String text = String.join(",", metrics) + "\n";
+
+        int nTimePoints = timeSeries.get(metrics.get(0)).size();
+        for (int t = 0; t < nTimePoints; t++) {
+            List<String> row = new ArrayList<>();
+            for (String metric : metrics) row.add(String.valueOf(timeSeries.get(metric).get(t)));
+            text += String.join(",", row) + "\n";
+        }
+
+        File file = new File(this.imageFolder + File.separator + "Time_series_ch" + channelId + ".csv");
+        if(Tools.saveCsvFile(file, text))
+            IJLogger.info("Sending time series table","Time series table has been successfully saved in " + file.getAbsolutePath());
+    }
+
     @Override
     public void sendTags(List<String> tags) {
         // update summary file for local image
@@ -428,6 +470,16 @@ public class LocalSender implements Sender{
     }
 
 
+    @Override
+    public void flush() {
+        // nothing to do ; results are saved as soon as they are sent
+    }
+
+    @Override
+    public void finish() {
+        // nothing to do ; results are saved as soon as they are sent
+    }
+
     /**
      * Add newly processed images to the summary file that lists all the processed images (for local images)
      *
@@ -436,9 +488,15 @@ public class LocalSender implements Sender{
     private void updateProcessedImageFile(List<String> filenames){
         File lastTable = getLastLocalTable(this.parentFolder, Tools.PROCESSED_IMAGES_SUFFIX);
 
+        // record the raw file size, last modification and content, to process the file again if it changes
         String text =  "";
         for (String name : filenames) {
-            text += name + "\n" ;
+            if(this.rawFile != null) {
+                text += ProcessedImageIndex.toEntry(name, this.rawFile, this.rawFileId) + "\n";
+                if(this.processedIndex != null)
+                    this.processedIndex.add(name, this.rawFile, this.rawFileId);
+            } else
+                text += name + "\n" ;
         }
 
         // save the list of processed files as csv file
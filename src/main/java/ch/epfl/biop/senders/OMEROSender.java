@@ -7,7 +7,6 @@ import ch.epfl.biop.image.ImageFile;
 import ch.epfl.biop.utils.Tools;
 import fr.igred.omero.Client;
 import fr.igred.omero.annotations.FileAnnotationWrapper;
-import fr.igred.omero.annotations.MapAnnotationWrapper;
 import fr.igred.omero.annotations.TableWrapper;
 import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
@@ -18,10 +17,7 @@ import fr.igred.omero.repository.GenericRepositoryObjectWrapper;
 import fr.igred.omero.repository.ImageWrapper;
 import fr.igred.omero.roi.ROIWrapper;
 import ij.ImagePlus;
-import ij.Prefs;
 import ij.gui.Roi;
-import ij.io.FileSaver;
-import ij.process.ImageStatistics;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.model.EllipseData;
@@ -32,33 +28,81 @@ import omero.gateway.model.RectangleData;
 import omero.gateway.model.ShapeData;
 import omero.gateway.model.TableData;
 import omero.gateway.model.TableDataColumn;
-import omero.gateway.model.TagAnnotationData;
+import omero.ServerError;
+import omero.api.IPixelsPrx;
+import omero.api.IUpdatePrx;
+import omero.api.RawPixelsStorePrx;
+import omero.grid.Column;
+import omero.grid.DoubleColumn;
+import omero.grid.ImageColumn;
+import omero.grid.LongColumn;
+import omero.grid.StringColumn;
+import omero.grid.TablePrx;
+import omero.model.DatasetI;
+import omero.model.DatasetImageLink;
+import omero.model.DatasetImageLinkI;
 import omero.model.IObject;
+import omero.model.ImageAnnotationLink;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.MapAnnotation;
+import omero.model.MapAnnotationI;
 import omero.model.NamedValue;
-
-import java.io.File;
+import omero.model.OriginalFileI;
+import omero.model.Pixels;
+import omero.model.PixelsType;
+import omero.model.TagAnnotationI;
+import omero.sys.ParametersI;
+
+import java.awt.geom.Rectangle2D;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.LongStream;
+
+import static omero.rtypes.rstring;
 
 /**
  * Class sending to OMERO processing results coming from the analysis of the grid ArgoSlide pattern.
  */
 public class OMEROSender implements Sender{
+    // number of images whose tags and key-values are linked in the same call
+    final private static int ANNOTATION_BATCH_SIZE = 20;
+    // columns of the ring tables (field distortion, uniformity, FWHM)
+    final private static List<String> RING_TABLE_HEADERS = Arrays.asList("Image", "Channel", "Ring ID", "Run date", "Value");
+    // metric columns of the ring tables of previous versions
+    final private static Pattern WIDE_TABLE_COLUMN = Pattern.compile("ch\\d+_.*");
+
     final Client client;
     final private String ARGOLIGHT_NAMESPACE = "ArgoLight analysis";
+    // namespace prefix of the dataset summary tables, to which new rows are appended ; one table per set of metrics
+    final private String PARENT_TABLE_NAMESPACE = "ArgoLight analysis summary";
     final private String date;
     final private boolean cleanTarget;
     final private String datasetId;
     private ImageWrapper imageWrapper;
     private boolean cleanParent;
+    final private List<ROIWrapper> pendingRois = new ArrayList<>();
+    final private List<ImagePlus> pendingHeatMaps = new ArrayList<>();
+    // tags of the group, by name ; loaded once for the whole run
+    private Map<String, TagAnnotationWrapper> groupTags = null;
+    // image ID -> tag and key-value links not saved yet
+    final private Map<Long, List<IObject>> pendingAnnotationLinks = new LinkedHashMap<>();
+    // image ID -> names of the tags not saved yet
+    final private Map<Long, Set<String>> pendingTagNames = new HashMap<>();
+    private int nImagesSinceLastSave = 0;
 
     public OMEROSender(Client client, String datasetTarget, boolean cleanTarget){
         this.client = client;
@@ -70,6 +114,15 @@ public class OMEROSender implements Sender{
 
     @Override
     public void initialize(ImageFile imageFile, Retriever retriever) {
+        if(!this.pendingRois.isEmpty()) {
+            IJLogger.warn("Sending ROIs", this.pendingRois.size() + " ROI(s) of the previous image have not been saved");
+            this.pendingRois.clear();
+        }
+        if(!this.pendingHeatMaps.isEmpty()) {
+            IJLogger.warn("Sending heatmap", this.pendingHeatMaps.size() + " heat map(s) of the previous image have not been saved");
+            this.pendingHeatMaps.clear();
+        }
+
         // save the new image wrapper and clean this image on OMERO if specified
         this.imageWrapper = ((OMERORetriever)retriever).getImageWrapper(imageFile.getId());
         if(this.cleanTarget)
@@ -84,12 +137,11 @@ public class OMEROSender implements Sender{
     private void sendTags(List<String> tags, ImageWrapper imageWrapper) {
         IJLogger.info("Adding tag");
 
-        // load group and image tags once
-        List<TagAnnotationWrapper> groupTags;
-        List<TagAnnotationWrapper> imageTags;
+        // load image tags once
+        Set<String> imageTags;
         try {
-            groupTags = this.client.getTags();
-            imageTags = imageWrapper.getTags(this.client);
+            loadGroupTags();
+            imageTags = imageWrapper.getTags(this.client).stream().map(TagAnnotationWrapper::getName).collect(Collectors.toSet());
         }catch(OMEROServerError | ServiceException | AccessException | ExecutionException e){
             IJLogger.error("Adding tag","Cannot retrieve existing & linked tags from OMERO", e);
             return;
@@ -99,20 +151,16 @@ public class OMEROSender implements Sender{
         List<String> uniqueTags = tags.stream().distinct().collect(Collectors.toList());
 
         // loop on tags to add
+        Set<String> pendingTags = this.pendingTagNames.computeIfAbsent(imageWrapper.getId(), k -> new HashSet<>());
         for(String tag : uniqueTags) {
             try {
-                // get the corresponding tag in the list of available tags if exists
-                List<TagAnnotationWrapper> rawTag = groupTags.stream().filter(t -> t.getName().equals(tag)).collect(Collectors.toList());
-
-                // check if the tag is already applied to the current image
-                boolean isTagAlreadyExisting = imageTags
-                        .stream()
-                        .anyMatch(t -> t.getName().equals(tag));
-
-                // add the tag to the current image if it is not already the case
-                if (!isTagAlreadyExisting) {
-                    imageWrapper.link(this.client, rawTag.isEmpty() ? new TagAnnotationWrapper(new TagAnnotationData(tag)) : rawTag.get(0));
-                    IJLogger.info("Adding tag","The tag " + tag + " has been successfully applied on the image " + imageWrapper.getId());
+                // add the tag to the current image if it is not already the case ; links are saved in batch
+                if (!imageTags.contains(tag) && pendingTags.add(tag)) {
+                    ImageAnnotationLink tagLink = new ImageAnnotationLinkI();
+                    tagLink.setParent(new ImageI(imageWrapper.getId(), false));
+                    tagLink.setChild(new TagAnnotationI(getOrCreateTag(tag).getId(), false));
+                    addAnnotationLink(imageWrapper.getId(), tagLink);
+                    IJLogger.info("Adding tag","The tag " + tag + " will be applied on the image " + imageWrapper.getId());
                 } else
                     IJLogger.info("Adding tag","The tag " + tag + " is already applied on the image " + imageWrapper.getId());
 
@@ -122,6 +170,38 @@ public class OMEROSender implements Sender{
         }
     }
 
+    /**
+     * Load the tags of the group, if not already done during this run
+     *
+     * @throws OMEROServerError
+     * @throws ServiceException
+     */
+    private void loadGroupTags() throws OMEROServerError, ServiceException {
+        if(this.groupTags != null)
+            return;
+        this.groupTags = new HashMap<>();
+        for(TagAnnotationWrapper tag : this.client.getTags())
+            this.groupTags.putIfAbsent(tag.getName(), tag);
+    }
+
+    /**
+     * Get an existing tag of the group or create it on OMERO
+     *
+     * @param tagName name of the tag
+     * @return the tag
+     * @throws ServiceException
+     * @throws AccessException
+     * @throws ExecutionException
+     */
+    private TagAnnotationWrapper getOrCreateTag(String tagName) throws ServiceException, AccessException, ExecutionException {
+        TagAnnotationWrapper tag = this.groupTags.get(tagName);
+        if(tag == null) {
+            tag = new TagAnnotationWrapper(this.client, tagName, "");
+            this.groupTags.put(tagName, tag);
+        }
+        return tag;
+    }
+
     @Override
     public void clean() {
         IJLogger.info("Cleaning target...");
@@ -222,38 +302,8 @@ public class OMEROSender implements Sender{
      * target : dataset ID
      */
     public void sendHeatMaps(ImagePlus imp) {
-        IJLogger.info("Sending heatmap");
-        String home = Prefs.getHomeDir();
-
-        // save the image on the computer first and get the generated file
-        File localImageFile = saveHeatMapLocally(imp, home);
-        if(localImageFile == null) {
-            IJLogger.error("Saving temporary heatMap","Cannot save temporary image "+imp.getTitle()+" in " +home);
-            return;
-        }
-
-        try {
-            // Import image on OMERO
-            List<Long> analysisImage_omeroID = this.client.getDataset(Long.parseLong(this.datasetId)).importImage(this.client, localImageFile.toString());
-            ImageWrapper analysisImage_wpr = this.client.getImage(analysisImage_omeroID.get(0));
-            IJLogger.info("Sending heatmap", imp.getTitle() + ".tif" + " was uploaded to OMERO with ID : " + analysisImage_omeroID);
-
-            List<String> tags = new ArrayList<String>(){{
-                add(Tools.PROCESSED_TAG);
-                add(Tools.ARGOLIGHT_TAG);
-                add((String)imp.getProperty(Tools.PROCESSED_FEATURE));
-            }};
-            sendTags(tags, analysisImage_wpr);
-
-        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError e) {
-            IJLogger.error("Sending heatmap", "Cannot upload heat maps on OMERO", e);
-        }
-
-        // delete the file after upload
-        boolean hasBeenDeleted = localImageFile.delete();
-        if(hasBeenDeleted)
-            IJLogger.info("Upload heatMap","Temporary image deleted");
-        else IJLogger.error("Upload heatMap","Cannot delete temporary image from "+localImageFile.getAbsolutePath());
+        // heat maps of the current image are uploaded at once, when flushing
+        this.pendingHeatMaps.add(imp);
     }
 
     @Override
@@ -264,16 +314,15 @@ public class OMEROSender implements Sender{
             namedValues.add(new NamedValue("Processing date", this.date));
             keyValues.forEach((key, value) -> namedValues.add(new NamedValue(key, value)));
 
-            // create a new MapAnnotation
-            MapAnnotationWrapper newKeyValues = new MapAnnotationWrapper(namedValues);
-            newKeyValues.setNameSpace(ARGOLIGHT_NAMESPACE);
-            try {
-                // upload key-values on OMERO
-                this.imageWrapper.link(this.client, newKeyValues);
-                IJLogger.info("Sending Key-values","Key-values have been successfully applied on the image " + imageWrapper.getId());
-            } catch (ServiceException | AccessException | ExecutionException e) {
-                IJLogger.error("Sending Key-Values", "Key-values could not be uploaded and linked to the image " + this.imageWrapper.getId(), e);
-            }
+            // create a new MapAnnotation ; it is saved in batch with its link
+            MapAnnotation newKeyValues = new MapAnnotationI();
+            newKeyValues.setMapValue(namedValues);
+            newKeyValues.setNs(rstring(ARGOLIGHT_NAMESPACE));
+
+            ImageAnnotationLink keyValuesLink = new ImageAnnotationLinkI();
+            keyValuesLink.setParent(new ImageI(this.imageWrapper.getId(), false));
+            keyValuesLink.setChild(newKeyValues);
+            addAnnotationLink(this.imageWrapper.getId(), keyValuesLink);
         } else IJLogger.warn("Sending Key-Values", "There is no key-values to send to OMERO");
     }
 
@@ -288,19 +337,86 @@ public class OMEROSender implements Sender{
             ROIData roiGrid = new ROIData();
             gridShapes.forEach(roiGrid::addShapeData);
 
-            List<ROIWrapper> omeroRois = new ArrayList<ROIWrapper>(){{add(new ROIWrapper(roiGrid));}};
-            omeroRois.get(0).setName(this.date + "_"+roiTitle);
-            try {
-                // save ROI on OMERO
-                this.imageWrapper.saveROIs(this.client, omeroRois);
-                IJLogger.info("Sending "+roiTitle + " ROIs","The ROIs have been successfully uploaded and linked to the image " + imageWrapper.getId());
-            } catch (ExecutionException | DSOutOfServiceException | DSAccessException e){
-                IJLogger.error("Sending "+roiTitle + " ROIs","Error during saving ROIs on OMERO.", e);
-            }
+            ROIWrapper omeroRoi = new ROIWrapper(roiGrid);
+            omeroRoi.setName(this.date + "_"+roiTitle);
+
+            // ROIs of all channels are saved at once, when flushing
+            this.pendingRois.add(omeroRoi);
         } else IJLogger.info("Sending "+roiTitle + " ROIs","There is no Annotations to upload on OMERO");
 
     }
 
+    @Override
+    public void flush() {
+        uploadHeatMaps();
+
+        // link tags and key-values of several images at once
+        if(++this.nImagesSinceLastSave >= ANNOTATION_BATCH_SIZE)
+            saveAnnotationLinks();
+
+        if(this.pendingRois.isEmpty())
+            return;
+
+        try {
+            // save all ROIs on OMERO in a single call
+            this.imageWrapper.saveROIs(this.client, this.pendingRois);
+            IJLogger.info("Sending ROIs", this.pendingRois.size() + " ROIs have been successfully uploaded and linked to the image " + imageWrapper.getId());
+        } catch (ExecutionException | DSOutOfServiceException | DSAccessException e){
+            IJLogger.error("Sending ROIs","Error during saving ROIs on OMERO.", e);
+        } finally {
+            this.pendingRois.clear();
+        }
+    }
+
+    @Override
+    public void finish() {
+        saveAnnotationLinks();
+    }
+
+    /**
+     * Queue an annotation link of an image
+     *
+     * @param imageId image to annotate
+     * @param link link between the image and the annotation
+     */
+    private void addAnnotationLink(long imageId, IObject link){
+        this.pendingAnnotationLinks.computeIfAbsent(imageId, k -> new ArrayList<>()).add(link);
+    }
+
+    /**
+     * Save all queued tag and key-value links in a single call. If it fails, links are saved image per image, so
+     * that failures are reported for each image.
+     */
+    private void saveAnnotationLinks(){
+        this.nImagesSinceLastSave = 0;
+        if(this.pendingAnnotationLinks.isEmpty())
+            return;
+
+        try {
+            List<IObject> links = new ArrayList<>();
+            this.pendingAnnotationLinks.values().forEach(links::addAll);
+            IUpdatePrx updateService = this.client.getGateway().getUpdateService(this.client.getCtx());
+            try {
+                updateService.saveArray(links);
+                IJLogger.info("Sending annotations", "Tags and key-values have been successfully applied on " + this.pendingAnnotationLinks.size() + " image(s)");
+            } catch (ServerError e) {
+                IJLogger.warn("Sending annotations", "Cannot link tags and key-values of all images at once ; they are linked image per image");
+                for (Map.Entry<Long, List<IObject>> entry : this.pendingAnnotationLinks.entrySet()) {
+                    try {
+                        updateService.saveArray(entry.getValue());
+                    } catch (ServerError e1) {
+                        IJLogger.error("Sending annotations", "Tags and key-values could not be linked to the image " + entry.getKey(), e1);
+                    }
+                }
+            }
+        } catch (DSOutOfServiceException e) {
+            IJLogger.error("Sending annotations", "Tags and key-values could not be linked to the images " + this.pendingAnnotationLinks.keySet(), e);
+        } finally {
+            this.pendingAnnotationLinks.clear();
+            this.pendingTagNames.clear();
+        }
+    }
+
     @Override
     public void sendPCCTable(List<List<Double>> pccValues, int nChannels){
         IJLogger.info("Sending PCC table");
@@ -337,12 +453,36 @@ public class OMEROSender implements Sender{
         } else IJLogger.warn("Saving PCC table","No results to save");
     }
 
+    @Override
+    public void sendTimeSeriesTable(Map<String, List<Double>> timeSeries, int channelId) {
+        IJLogger.info("Sending time series table");
+        // build the table
+        List<TableDataColumn> columns = new ArrayList<>();
+        List<List<Object>> measurements = new ArrayList<>();
+
+        // add headers and values
+        int i = 0;
+        for(Map.Entry<String, List<Double>> metric : timeSeries.entrySet()){
+            columns.add(new TableDataColumn(metric.getKey(), i++, Double.class));
+            measurements.add(new ArrayList<>(metric.getValue()));
+        }
+
+        if(!columns.isEmpty()) {
+            // send the table to OMERO
+            try {
+                TableWrapper tableWrapper = new TableWrapper(new TableData(columns, measurements));
+                tableWrapper.setName(this.date + "_Time_series_ch" + channelId);
+                sendAttachment(this.client, this.imageWrapper, tableWrapper);
+                IJLogger.info("Sending time series table","Time series table has been successfully uploaded and linked to the image " + imageWrapper.getId());
+            } catch (DSOutOfServiceException | DSAccessException | ExecutionException e) {
+                IJLogger.error("Sending time series table","Cannot add the time series table to image " + this.imageWrapper.getName() + " : " + this.imageWrapper.getId(), e);
+            }
+        } else IJLogger.warn("Sending time series table","No results to save");
+    }
+
     @Override
     public void sendResultsTable(List<List<Double>> values, List<Integer> channelIdList, boolean createNewTable, String tableName){
         IJLogger.info("Sending "+tableName+" table");
-        TableWrapper tableWrapper;
-        // get the last OMERO table
-        TableWrapper table = getOmeroTable(this.client, this.imageWrapper, tableName);
 
         // Make sure that the different columns have the same number of rows i.e. all channels properly detected
         // If it's not the case, each column with nRows < nMaxRow will have -1 instead
@@ -365,18 +505,44 @@ public class OMEROSender implements Sender{
             }
         }
 
-        // populate existing table or create a new one
-        if(!createNewTable && table != null)
-            tableWrapper = addNewColumnsToTable(table, values, channelIdList, this.date);
-        else tableWrapper = createNewTable(values, channelIdList, this.date);
+        // one row per channel and ring
+        List<List<Object>> rows = new ArrayList<>();
+        for (int j = 0; j < values.size(); j++) {
+            for (int ring = 0; ring < values.get(j).size(); ring++)
+                rows.add(Arrays.asList(this.imageWrapper.asDataObject(), (long) channelIdList.get(j), (long) ring,
+                        this.date, values.get(j).get(ring)));
+        }
 
-        // send table to OMERO
         try {
+            TableWrapper legacyTable = null;
+            FileAnnotationWrapper tableFile = createNewTable ? null : getTableFile(this.imageWrapper, tableName);
+            if(tableFile != null) {
+                // append the rows to the existing table, without downloading it
+                if(appendToTable(tableFile.getFileID(), rows)) {
+                    IJLogger.info("Sending "+tableName+" table","New rows have been appended to the "+tableName+" table of the image " + imageWrapper.getId());
+                    return;
+                }
+
+                // tables of previous versions have one column per channel and run ; their rows are moved to the new table
+                if(isWideTable(tableFile.getFileID())) {
+                    long fileId = tableFile.getFileID();
+                    legacyTable = this.imageWrapper.getTables(this.client).stream()
+                            .filter(t -> t.getFileId() == fileId)
+                            .findFirst()
+                            .orElse(null);
+                    if(legacyTable != null)
+                        rows.addAll(0, readWideTable(legacyTable));
+                } else
+                    IJLogger.warn("Sending "+tableName+" table", "The existing "+tableName+" table of the image " + imageWrapper.getId() +
+                            " has unexpected columns ; it is kept and a new table is created next to it");
+            }
+
+            TableWrapper tableWrapper = createLongTable(rows);
             tableWrapper.setName(tableName);
             sendAttachment(this.client, this.imageWrapper, tableWrapper);
-            if(table != null) this.client.deleteTable(table);
+            if(legacyTable != null) this.client.deleteTable(legacyTable);
             IJLogger.info("Sending "+tableName+" table",tableName+" table has been successfully uploaded and linked to the image " + imageWrapper.getId());
-        } catch (DSOutOfServiceException | DSAccessException | ExecutionException | OMEROServerError | InterruptedException e) {
+        } catch (DSOutOfServiceException | DSAccessException | ExecutionException | OMEROServerError | ServerError | InterruptedException e) {
             IJLogger.error("Sending "+tableName+" table","Cannot add the "+tableName+" table to image " + this.imageWrapper.getName() + " : " + this.imageWrapper.getId(), e);
         }
     }
@@ -384,6 +550,10 @@ public class OMEROSender implements Sender{
     @Override
     public void populateParentTable(Retriever retriever, Map<String, List<List<Double>>> summary, List<String> headers, boolean populateExistingTable) {
         IJLogger.info("Update parent table...");
+        if(summary.isEmpty() || headers.isEmpty()) {
+            IJLogger.warn("Update parent table", "No image has been analysed ; the parent table is not updated");
+            return;
+        }
         // format data
         List<Object[]> fullRows = new ArrayList<>();
         for (Map.Entry<String, List<List<Double>>> IdEntry : summary.entrySet()) {
@@ -407,19 +577,51 @@ public class OMEROSender implements Sender{
             // get the current dataset
             DatasetWrapper dataset = this.client.getDataset(Long.parseLong(this.datasetId));
 
-            if(populateExistingTable) {
-                // get existing table
-                TableWrapper tableWrapper = getLastOmeroTable(this.client, dataset);
+            // the namespace identifies the table of the current summary metrics
+            String namespace = getParentTableNamespace(headers);
 
-                // apply the adding/replacement policy
-                if(tableWrapper == null)
-                    addNewParentTable(fullRows, headers, dataset, this.date);
-                else replaceExistingParentTable(fullRows, dataset, tableWrapper, this.date);
+            if(populateExistingTable) {
+                List<FileAnnotationWrapper> files = dataset.getFileAnnotations(this.client);
+
+                // get the current parent table, found by its namespace
+                FileAnnotationWrapper tableFile = files.stream()
+                        .filter(e -> namespace.equals(e.getNameSpace()))
+                        .max(Comparator.comparing(FileAnnotationWrapper::getId))
+                        .orElse(null);
+                boolean hasParentTable = files.stream()
+                        .anyMatch(e -> e.getNameSpace() != null && e.getNameSpace().startsWith(PARENT_TABLE_NAMESPACE));
+
+                if(tableFile != null) {
+                    // only append the new rows
+                    if(!appendToParentTable(tableFile.getFileID(), fullRows, headers)) {
+                        // the parent table has been modified outside of this tool ; it is kept as the current table
+                        IJLogger.error("Update parent table", "The columns of "+tableFile.getFileName()+" do not match the current metrics. " +
+                                "The new summaries are saved in a separate table, and will not be appended to");
+                        addNewParentTable(fullRows, headers, dataset, this.date, ARGOLIGHT_NAMESPACE);
+                    }
+                } else if(hasParentTable) {
+                    // the summary metrics have changed ; tables of the previous metrics are kept as they are
+                    IJLogger.warn("Update parent table", "The summary metrics have changed since the last parent table. A new table is created");
+                    addNewParentTable(fullRows, headers, dataset, this.date, namespace);
+                } else {
+                    // tables of previous versions have no dedicated namespace ; the last one is copied once
+                    TableWrapper tableWrapper = getLastOmeroTable(this.client, dataset);
+
+                    // apply the adding/replacement policy
+                    if(tableWrapper == null)
+                        addNewParentTable(fullRows, headers, dataset, this.date, namespace);
+                    else if(tableWrapper.getColumnCount() != headers.size() + 2) {
+                        // the summary metrics have changed since the last table
+                        IJLogger.warn("Update parent table", "The columns of "+tableWrapper.getName()+" do not match the current metrics. A new table is created");
+                        addNewParentTable(fullRows, headers, dataset, this.date, namespace);
+                    }
+                    else replaceExistingParentTable(fullRows, dataset, tableWrapper, this.date, namespace);
+                }
             } else
-                addNewParentTable(fullRows, headers, dataset, this.date);
+                addNewParentTable(fullRows, headers, dataset, this.date, namespace);
 
             IJLogger.info("Update parent table","New analysis summaries have been uploaded and linked to dataset " + dataset.getName() + " : " + dataset.getId());
-        } catch (DSAccessException | ServiceException | ExecutionException e) {
+        } catch (DSAccessException | DSOutOfServiceException | ExecutionException | ServerError e) {
             IJLogger.error("Update parent table","Cannot add the summaries to the parent table on dataset " + this.datasetId, e);
         }
     }
@@ -436,6 +638,22 @@ public class OMEROSender implements Sender{
      */
     private void sendAttachment(Client client, GenericRepositoryObjectWrapper<?> repoWrapper, TableWrapper tableWrapper)
             throws DSAccessException, DSOutOfServiceException, ExecutionException {
+        sendAttachment(client, repoWrapper, tableWrapper, ARGOLIGHT_NAMESPACE);
+    }
+
+    /**
+     * Saves the table on OMERO, link it to the right image and assign it the given namespace
+     *
+     * @param client the OMERO client that handles the connection
+     * @param repoWrapper the image on which to link the table
+     * @param tableWrapper the table to link
+     * @param namespace namespace of the table
+     * @throws DSAccessException
+     * @throws DSOutOfServiceException
+     * @throws ExecutionException
+     */
+    private void sendAttachment(Client client, GenericRepositoryObjectWrapper<?> repoWrapper, TableWrapper tableWrapper, String namespace)
+            throws DSAccessException, DSOutOfServiceException, ExecutionException {
         repoWrapper.addTable(client, tableWrapper);
         long fileId = tableWrapper.getFileId();
         FileAnnotationWrapper originalFile = repoWrapper.getFileAnnotations(client)
@@ -444,74 +662,156 @@ public class OMEROSender implements Sender{
                 .findFirst()
                 .orElse(null);
         if(originalFile != null){
-            originalFile.setNameSpace(ARGOLIGHT_NAMESPACE);
+            originalFile.setNameSpace(namespace);
             client.getDm().updateObject(client.getCtx(), originalFile.asDataObject().asIObject(), null);
         }
     }
 
 
     /**
-     * Create a new OMERO table
-     * @param values data to send, formatted in a list of list (list of columns)
-     * @param channelIdList list of channels
-     * @param date current date of processing
+     * Create a new OMERO table in long format, i.e. one row per image, channel, ring and run
+     * @param rows rows of the table, ordered as {@link #RING_TABLE_HEADERS}
      * @return the new table wrapper
      */
-    private TableWrapper createNewTable(List<List<Double>> values, List<Integer> channelIdList, String date) {
+    private TableWrapper createLongTable(List<List<Object>> rows) {
         List<TableDataColumn> columns = new ArrayList<>();
         List<List<Object>> measurements = new ArrayList<>();
-        int i = 0;
+        Class<?>[] types = {ImageData.class, Long.class, Long.class, String.class, Double.class};
+
+        for (int i = 0; i < RING_TABLE_HEADERS.size(); i++) {
+            columns.add(new TableDataColumn(RING_TABLE_HEADERS.get(i), i, types[i]));
+            List<Object> column = new ArrayList<>();
+            for (List<Object> row : rows)
+                column.add(row.get(i));
+            measurements.add(column);
+        }
+        return new TableWrapper(new TableData(columns, measurements));
+    }
 
-        if(!values.isEmpty()) {
-            // add the first column with the image data (linkable on OMERO)
-            columns.add(new TableDataColumn("Image ID", i++, ImageData.class));
-            List<Object> imageData = new ArrayList<>();
 
-            for (Double ignored : values.get(0)) {
-                imageData.add(this.imageWrapper.asDataObject());
+    /**
+     * Append rows to an existing OMERO table in long format
+     *
+     * @param fileId id of the table file
+     * @param rows rows to add, ordered as {@link #RING_TABLE_HEADERS}
+     * @return true if the rows have been added ; false if the table is not in long format
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     */
+    private boolean appendToTable(long fileId, List<List<Object>> rows) throws DSOutOfServiceException, ServerError {
+        TablePrx table = this.client.getGateway().getSharedResources(this.client.getCtx()).openTable(new OriginalFileI(fileId, false));
+        if(table == null)
+            return false;
+        try {
+            Column[] headers = table.getHeaders();
+            if (headers.length != RING_TABLE_HEADERS.size() || !(headers[3] instanceof StringColumn))
+                return false;
+            for (int i = 0; i < headers.length; i++)
+                if (!headers[i].name.equals(RING_TABLE_HEADERS.get(i)))
+                    return false;
+
+            long[] imageIds = new long[rows.size()];
+            long[] channels = new long[rows.size()];
+            long[] rings = new long[rows.size()];
+            String[] dates = new String[rows.size()];
+            double[] values = new double[rows.size()];
+            for (int r = 0; r < rows.size(); r++) {
+                List<Object> row = rows.get(r);
+                imageIds[r] = ((ImageData) row.get(0)).getId();
+                channels[r] = (Long) row.get(1);
+                rings[r] = (Long) row.get(2);
+                dates[r] = (String) row.get(3);
+                values[r] = (Double) row.get(4);
             }
-            measurements.add(imageData);
 
-            // add the second column with the ring id (from top-left to bottom-right)
-            columns.add(new TableDataColumn("Ring ID", i++, Long.class));
-            List<Object> ids = new ArrayList<>();
-            LongStream.range(0, values.get(0).size()).forEach(ids::add);
-            measurements.add(ids);
-
-            for (int j = 0; j < values.size(); j++) {
-                columns.add(new TableDataColumn("ch" + channelIdList.get(j) + "_" + date, i++, Double.class));
-                measurements.add(new ArrayList<>(values.get(j)));
-            }
+            table.addData(new Column[]{
+                    new ImageColumn(headers[0].name, headers[0].description, imageIds),
+                    new LongColumn(headers[1].name, headers[1].description, channels),
+                    new LongColumn(headers[2].name, headers[2].description, rings),
+                    new StringColumn(headers[3].name, headers[3].description, ((StringColumn) headers[3]).size, dates),
+                    new DoubleColumn(headers[4].name, headers[4].description, values)});
+            return true;
+        } finally {
+            table.close();
         }
-        return new TableWrapper(new TableData(columns, measurements));
     }
 
 
     /**
-     * Populate an existing table with new columns of data
+     * Check if a table has the layout of previous versions, i.e. Image ID, Ring ID and one "ch<id>_<date>" column
+     * per channel and run
      *
-     * @param tableToPopulate existing table
-     * @param values data to add
-     * @param channelIdList list of channels
-     * @param date current date of processing
-     * @return A new table wrapper containing all previous and new data
+     * @param fileId id of the table file
+     * @return true if the table has the wide layout
+     * @throws DSOutOfServiceException
+     * @throws ServerError
      */
-    private TableWrapper addNewColumnsToTable(TableWrapper tableToPopulate, List<List<Double>> values, List<Integer> channelIdList, String date){
-        TableData tableData = tableToPopulate.createTable();
-        List<TableDataColumn> columns = new ArrayList<>(Arrays.asList(tableData.getColumns()));
-        List<List<Object>> measurements = new ArrayList<>();
+    private boolean isWideTable(long fileId) throws DSOutOfServiceException, ServerError {
+        TablePrx table = this.client.getGateway().getSharedResources(this.client.getCtx()).openTable(new OriginalFileI(fileId, false));
+        if(table == null)
+            return false;
+        try {
+            Column[] headers = table.getHeaders();
+            if(headers.length < 3 || !headers[0].name.equals("Image ID") || !headers[1].name.equals("Ring ID"))
+                return false;
+            for (int i = 2; i < headers.length; i++)
+                if(!WIDE_TABLE_COLUMN.matcher(headers[i].name).matches())
+                    return false;
+            return true;
+        } finally {
+            table.close();
+        }
+    }
 
+    /**
+     * Convert a table of previous versions, with one column per channel and run, into long format rows
+     *
+     * @param table existing table
+     * @return rows ordered as {@link #RING_TABLE_HEADERS}
+     */
+    private static List<List<Object>> readWideTable(TableWrapper table){
+        TableData tableData = table.createTable();
+        TableDataColumn[] columns = tableData.getColumns();
         Object[][] data = tableData.getData();
-        for (Object[] datum : data) measurements.add(Arrays.asList(datum));
-        int i = data.length;
-
-        if(values.size() > 0) {
-            for (int j = 0; j < values.size(); j++) {
-                columns.add(new TableDataColumn("ch" + channelIdList.get(j) + "_" + date, i++, Double.class));
-                measurements.add(new ArrayList<>(values.get(j)));
+        List<List<Object>> rows = new ArrayList<>();
+        List<String> droppedColumns = new ArrayList<>();
+
+        // columns : Image ID, Ring ID, ch<id>_<date>...
+        for (int i = 2; i < columns.length; i++) {
+            String name = columns[i].getName();
+            if(!WIDE_TABLE_COLUMN.matcher(name).matches()) {
+                droppedColumns.add(name);
+                continue;
             }
+            int sep = name.indexOf('_');
+            long channel = Long.parseLong(name.substring(2, sep));
+            for (int r = 0; r < data[i].length; r++)
+                rows.add(Arrays.asList(data[0][r], channel, ((Number) data[1][r]).longValue(), name.substring(sep + 1),
+                        ((Number) data[i][r]).doubleValue()));
         }
-        return new TableWrapper(new TableData(columns, measurements));
+        if(!droppedColumns.isEmpty())
+            IJLogger.warn("Convert " + table.getName() + " table", "The columns " + droppedColumns + " cannot be converted and are not kept");
+        return rows;
+    }
+
+
+    /**
+     * Get the file of a table attached to a container, without reading the table
+     *
+     * @param repoWrapper container
+     * @param tableName name of the table
+     * @return the file annotation of the last table with this name, or null if there is none
+     * @throws DSAccessException
+     * @throws DSOutOfServiceException
+     * @throws ExecutionException
+     */
+    private FileAnnotationWrapper getTableFile(GenericRepositoryObjectWrapper<?> repoWrapper, String tableName)
+            throws DSAccessException, DSOutOfServiceException, ExecutionException {
+        return repoWrapper.getFileAnnotations(this.client)
+                .stream()
+                .filter(e -> tableName.equals(e.getFileName()))
+                .max(Comparator.comparing(FileAnnotationWrapper::getId))
+                .orElse(null);
     }
 
 
@@ -521,8 +821,9 @@ public class OMEROSender implements Sender{
      * @param headers table headers
      * @param repoWrapper OMERO container (e.g DatasetData)
      * @param date current date of processing
+     * @param namespace namespace of the table
      */
-    private void addNewParentTable(List<Object[]> fullRows, List<String> headers, GenericRepositoryObjectWrapper<?> repoWrapper, String date) {
+    private void addNewParentTable(List<Object[]> fullRows, List<String> headers, GenericRepositoryObjectWrapper<?> repoWrapper, String date, String namespace) {
         try {
             // create a new table
             TableWrapper tableWrapper = new TableWrapper(headers.size() + 2, date + "_" + repoWrapper.getName() + "_Table");
@@ -542,13 +843,74 @@ public class OMEROSender implements Sender{
             for (Object[] row : fullRows) tableWrapper.addRow(row);
 
             // add the table to OMERO
-            sendAttachment(this.client, repoWrapper, tableWrapper);
+            sendAttachment(this.client, repoWrapper, tableWrapper, namespace);
 
         } catch (DSOutOfServiceException | DSAccessException | ExecutionException e) {
             IJLogger.error("Cannot add the results table to image " + this.imageWrapper.getName() + " : " + this.imageWrapper.getId(), e);
         }
     }
 
+    /**
+     * Append new summary results at the bottom of the parent table, without reading the existing rows
+     *
+     * @param fileId id of the table file
+     * @param fullRows metrics summary as a list of array (row)
+     * @param headers metrics names
+     * @return true if the rows have been added ; false if the table columns do not match the metrics
+     * @throws DSOutOfServiceException
+     * @throws ServerError
+     */
+    private boolean appendToParentTable(long fileId, List<Object[]> fullRows, List<String> headers) throws DSOutOfServiceException, ServerError {
+        TablePrx table = this.client.getGateway().getSharedResources(this.client.getCtx()).openTable(new OriginalFileI(fileId, false));
+        if(table == null)
+            return false;
+        try {
+            Column[] tableHeaders = table.getHeaders();
+            if (tableHeaders.length != headers.size() + 2 || !(tableHeaders[1] instanceof StringColumn))
+                return false;
+            for (int i = 0; i < headers.size(); i++)
+                if (!tableHeaders[i + 2].name.equals(headers.get(i)))
+                    return false;
+            if(fullRows.isEmpty())
+                return true;
+
+            long labelSize = ((StringColumn) tableHeaders[1]).size;
+            long[] imageIds = new long[fullRows.size()];
+            String[] labels = new String[fullRows.size()];
+            double[][] metrics = new double[headers.size()][fullRows.size()];
+            for (int r = 0; r < fullRows.size(); r++) {
+                Object[] row = fullRows.get(r);
+                imageIds[r] = ((ImageData) row[0]).getId();
+                // string columns have a fixed width
+                String label = (String) row[1];
+                labels[r] = label.length() > labelSize ? label.substring(0, (int) labelSize) : label;
+                for (int m = 0; m < headers.size(); m++)
+                    metrics[m][r] = row[m + 2] == null ? Double.NaN : (Double) row[m + 2];
+            }
+
+            Column[] columns = new Column[tableHeaders.length];
+            columns[0] = new ImageColumn(tableHeaders[0].name, tableHeaders[0].description, imageIds);
+            columns[1] = new StringColumn(tableHeaders[1].name, tableHeaders[1].description, labelSize, labels);
+            for (int m = 0; m < headers.size(); m++)
+                columns[m + 2] = new DoubleColumn(tableHeaders[m + 2].name, tableHeaders[m + 2].description, metrics[m]);
+            table.addData(columns);
+            return true;
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * The namespace of the parent table depends on the summary metrics, so that a change of metrics never replaces
+     * the table of the previous metrics
+     *
+     * @param headers metrics names
+     * @return the namespace of the parent table
+     */
+    private String getParentTableNamespace(List<String> headers){
+        return PARENT_TABLE_NAMESPACE + "/" + Integer.toHexString(String.join(",", headers).hashCode());
+    }
+
     /**
      * read the existing summary parent table and append new summary results at the bottom.
      *
@@ -556,8 +918,9 @@ public class OMEROSender implements Sender{
      * @param repoWrapper OMERO container (e.g DatasetData)
      * @param tableWrapper the existing
      * @param date current date of processing
+     * @param namespace namespace of the new table
      */
-    private void replaceExistingParentTable(List<Object[]> fullRows, GenericRepositoryObjectWrapper<?> repoWrapper, TableWrapper tableWrapper, String date){
+    private void replaceExistingParentTable(List<Object[]> fullRows, GenericRepositoryObjectWrapper<?> repoWrapper, TableWrapper tableWrapper, String date, String namespace){
         try {
             // get the table size
             int nExistingRows = tableWrapper.getRowCount();
@@ -576,7 +939,7 @@ public class OMEROSender implements Sender{
             tableWrapper.setName(date + "_" + repoWrapper.getName() + "_Table");
 
             // add the new table
-            sendAttachment(this.client, repoWrapper, tableWrapper);
+            sendAttachment(this.client, repoWrapper, tableWrapper, namespace);
 
             // delete the previous table
             tableWrapper.setId(tableId);
@@ -590,24 +953,137 @@ public class OMEROSender implements Sender{
     }
 
     /**
-     * save an image locally on the computer and returns the saved file
+     * Upload the heat maps of the current image, straight from memory : images are created on the server and their
+     * pixels are written with the raw pixels service, without any temporary file nor import. Heat maps are then
+     * linked to the dataset and tagged in a single call. If anything fails, the images already created are deleted.
+     */
+    private void uploadHeatMaps(){
+        if(this.pendingHeatMaps.isEmpty())
+            return;
+
+        IJLogger.info("Sending heatmap", "Uploading " + this.pendingHeatMaps.size() + " heat map(s)");
+        List<Long> imageIds = new ArrayList<>();
+        try {
+            IPixelsPrx pixelsService = this.client.getGateway().getPixelsService(this.client.getCtx());
+            Map<String, PixelsType> pixelsTypes = new HashMap<>();
+            for(IObject type : pixelsService.getAllEnumerations(PixelsType.class.getName()))
+                pixelsTypes.put(((PixelsType) type).getValue().getValue(), (PixelsType) type);
+
+            // create all images
+            for(ImagePlus imp : this.pendingHeatMaps) {
+                String type = getPixelsType(imp);
+                if(!pixelsTypes.containsKey(type))
+                    throw new IllegalStateException("Pixel type " + type + " is not available on OMERO");
+                imageIds.add(pixelsService.createImage(imp.getWidth(), imp.getHeight(), 1, 1,
+                        Collections.singletonList(0), pixelsTypes.get(type), imp.getTitle(), "").getValue());
+            }
+
+            // get the pixels of all images at once
+            ParametersI params = new ParametersI();
+            params.addIds(imageIds);
+            Map<Long, Long> pixelsIds = new HashMap<>();
+            for(IObject object : this.client.getGateway().getQueryService(this.client.getCtx())
+                    .findAllByQuery("select p from Pixels p where p.image.id in (:ids)", params)) {
+                Pixels pixels = (Pixels) object;
+                pixelsIds.put(pixels.getImage().getId().getValue(), pixels.getId().getValue());
+            }
+
+            // write the planes with the same store
+            RawPixelsStorePrx store = this.client.getGateway().createPixelsStore(this.client.getCtx());
+            try {
+                for(int i = 0; i < imageIds.size(); i++) {
+                    store.setPixelsId(pixelsIds.get(imageIds.get(i)), false);
+                    store.setPlane(getPlane(this.pendingHeatMaps.get(i)), 0, 0, 0);
+                    store.save();
+                }
+            } finally {
+                store.close();
+            }
+
+            // link all heat maps to the dataset and tag them at once
+            List<IObject> links = new ArrayList<>();
+            loadGroupTags();
+            for(int i = 0; i < imageIds.size(); i++) {
+                ImagePlus imp = this.pendingHeatMaps.get(i);
+                long imageId = imageIds.get(i);
+
+                DatasetImageLink datasetLink = new DatasetImageLinkI();
+                datasetLink.setParent(new DatasetI(Long.parseLong(this.datasetId), false));
+                datasetLink.setChild(new ImageI(imageId, false));
+                links.add(datasetLink);
+
+                for(String tagName : Arrays.asList(Tools.PROCESSED_TAG, Tools.ARGOLIGHT_TAG, (String)imp.getProperty(Tools.PROCESSED_FEATURE))) {
+                    if(tagName == null)
+                        continue;
+                    ImageAnnotationLink tagLink = new ImageAnnotationLinkI();
+                    tagLink.setParent(new ImageI(imageId, false));
+                    tagLink.setChild(new TagAnnotationI(getOrCreateTag(tagName).getId(), false));
+                    links.add(tagLink);
+                }
+            }
+
+            this.client.getGateway().getUpdateService(this.client.getCtx()).saveArray(links);
+            IJLogger.info("Sending heatmap", "Heat maps " + imageIds + " have been uploaded, linked to the dataset " + this.datasetId + " and tagged");
+
+        } catch (DSOutOfServiceException | ServerError | OMEROServerError | ServiceException | AccessException | ExecutionException | IllegalStateException e) {
+            IJLogger.error("Sending heatmap", "Cannot upload heat maps on OMERO", e);
+            deleteImages(imageIds);
+        } finally {
+            this.pendingHeatMaps.clear();
+        }
+    }
+
+    /**
+     * Delete images from OMERO, e.g. heat maps whose upload has failed
      *
-     * @param imp the imagePlus to save
-     * @param folder the location where to save it
-     * @return the saved file
+     * @param imageIds ids of the images to delete
      */
-    public static File saveHeatMapLocally(ImagePlus imp, String folder){
-        FileSaver fs = new FileSaver(imp);
-        // create an image file in the given folder, with the given imageName
-        File analysisImage_output_path = new File(folder,imp.getTitle() + ".tif");
+    private void deleteImages(List<Long> imageIds){
+        if(imageIds.isEmpty())
+            return;
+        try {
+            List<IObject> images = imageIds.stream().map(id -> (IObject) new ImageI(id, false)).collect(Collectors.toList());
+            this.client.getDm().delete(this.client.getCtx(), images);
+            IJLogger.info("Sending heatmap", "Partially uploaded heat maps " + imageIds + " have been removed from OMERO");
+        } catch (DSOutOfServiceException | DSAccessException e) {
+            IJLogger.error("Sending heatmap", "Partially uploaded heat maps " + imageIds + " could not be removed from OMERO", e);
+        }
+    }
 
-        // save the image
-        boolean hasBeenSaved = fs.saveAsTiff(analysisImage_output_path.toString());
+    /**
+     * @param imp heat map
+     * @return the OMERO pixel type of the heat map
+     */
+    private static String getPixelsType(ImagePlus imp){
+        switch (imp.getBitDepth()) {
+            case 8:
+                return "uint8";
+            case 16:
+                return "uint16";
+            default:
+                return "float";
+        }
+    }
 
-        // check if the image was correctly saved
-       if(!hasBeenSaved)
-           return null;
-       return analysisImage_output_path;
+    /**
+     * @param imp single-plane heat map
+     * @return the pixels of the heat map as big-endian bytes, in the pixel type given by {@link #getPixelsType(ImagePlus)}
+     */
+    private static byte[] getPlane(ImagePlus imp){
+        int nPixels = imp.getWidth() * imp.getHeight();
+        ByteBuffer buffer;
+        switch (imp.getBitDepth()) {
+            case 8:
+                return (byte[]) imp.getProcessor().getPixels();
+            case 16:
+                buffer = ByteBuffer.allocate(2 * nPixels);
+                buffer.asShortBuffer().put((short[]) imp.getProcessor().getPixels());
+                return buffer.array();
+            default:
+                buffer = ByteBuffer.allocate(4 * nPixels);
+                buffer.asFloatBuffer().put((float[]) imp.getProcessor().convertToFloatProcessor().getPixels());
+                return buffer.array();
+        }
     }
 
     /**
@@ -623,13 +1099,14 @@ public class OMEROSender implements Sender{
         for(int i = 0; i< rois.size(); i++) {
             Roi roi = rois.get(i);
             int type = roi.getType();
-            ImageStatistics roiStat = roi.getStatistics();
+            // geometry is read from the stored ROI bounds ; no need to compute statistics on a mask
+            Rectangle2D.Double bounds = roi.getFloatBounds();
             switch (type) {
                 case Roi.OVAL:
-                    EllipseData ellipse = new EllipseData(roiStat.xCentroid,
-                            roiStat.yCentroid,
-                            roiStat.roiWidth / 2,
-                            roiStat.roiHeight / 2);
+                    EllipseData ellipse = new EllipseData(bounds.getCenterX(),
+                            bounds.getCenterY(),
+                            bounds.width / 2,
+                            bounds.height / 2);
                     ellipse.setText(i+":child");
                     ellipse.setC(channelId);
                     ellipse.getShapeSettings().setStroke(roi.getStrokeColor());
@@ -638,7 +1115,7 @@ public class OMEROSender implements Sender{
                     break;
                 case Roi.RECTANGLE:
                     // Build the OMERO object
-                    RectangleData rectangle = new RectangleData(roiStat.roiX, roiStat.roiY, roiStat.roiWidth, roiStat.roiHeight);
+                    RectangleData rectangle = new RectangleData(bounds.x, bounds.y, bounds.width, bounds.height);
                     // Write in comments the type of PathObject as well as the assigned class if there is one
                     rectangle.setText(i+":child");
                     // set the ROI position in the image
@@ -683,26 +1160,4 @@ public class OMEROSender implements Sender{
             return null;
         }
     }
-
-    /**
-     * Read an OMERO table attached to container
-     *
-     * @param client
-     * @param repoWrapper
-     * @param tableName
-     * @return
-     */
-    private static TableWrapper getOmeroTable(Client client, GenericRepositoryObjectWrapper<?> repoWrapper, String tableName){
-        // TODO see to what extent it's possible to restrict the filter to the particular namespace without breaking everything
-        try {
-            List<TableWrapper> tableList = repoWrapper.getTables(client).stream().filter(e -> e.getName().contains(tableName)).collect(Collectors.toList());
-            if(!tableList.isEmpty()){
-                return tableList.get(0);
-            }
-           return null;
-        }catch(ExecutionException | DSOutOfServiceException | DSAccessException e){
-            IJLogger.error("Could not get table "+tableName+" attached to " + repoWrapper.getName()+" ("+repoWrapper.getId()+")", e);
-            return null;
-        }
-    }
 }
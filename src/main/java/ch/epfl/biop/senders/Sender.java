@@ -59,6 +59,13 @@ public interface Sender {
      */
     void populateParentTable(Retriever retriever, Map<String, List<List<Double>>> summary, List<String> headers, boolean populateExistingTable);
 
+    /**
+     * Save the table of metrics measured on each time point of a time-lapse image
+     * @param timeSeries metric names and their values for each time point
+     * @param channelId channel of interest
+     */
+    void sendTimeSeriesTable(Map<String, List<Double>> timeSeries, int channelId);
+
     /**
      * Save Pearson Correlation Coefficient analysis table
      * @param pccValues
@@ -76,4 +83,14 @@ public interface Sender {
      * Delete all previous runs (ROIs, tables, key-value pairs...) except tags and heatmaps, both located on OMERO
      */
     void clean();
+
+    /**
+     * Save the results buffered for the current image (e.g. grid ROIs of all channels) at once
+     */
+    void flush();
+
+    /**
+     * Save the results buffered for the whole run (e.g. tags and key-values of the last images)
+     */
+    void finish();
 }
@@ -0,0 +1,167 @@
+package ch.epfl.biop.utils;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of reusable pixel buffers, used for intermediate images (masks, filtered copies...).
+ * Buffers are grouped by dimensions and bit depth, so that processing a batch of images acquired with the same
+ * settings allocates full-frame copies only once.
+ * <p>
+ * One pool is attached to each worker thread, so that buffers are never handed to two threads. Usage statistics of
+ * all the pools are reported together with {@link #logStatistics()}.
+ */
+public class ImageProcessorPool {
+    final private static int MAX_BUFFERS_PER_KEY = 4;
+    // pools of all the threads that used one ; pools of terminated threads are garbage collected
+    final private static Set<ImageProcessorPool> ALL_POOLS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    final private static ThreadLocal<ImageProcessorPool> WORKER_POOL = ThreadLocal.withInitial(() -> {
+        ImageProcessorPool pool = new ImageProcessorPool(Thread.currentThread().getName());
+        ALL_POOLS.add(pool);
+        return pool;
+    });
+
+    final private String workerName;
+    final private Map<String, Deque<ImageProcessor>> buffers = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+
+    private ImageProcessorPool(String workerName){
+        this.workerName = workerName;
+    }
+
+    /**
+     * @return the pool attached to the current worker thread
+     */
+    public static ImageProcessorPool get(){
+        return WORKER_POOL.get();
+    }
+
+    /**
+     * Copy the pixels of an image processor in a buffer of the pool.
+     * The returned processor has to be given back with {@link #release(ImageProcessor)} once it is not used anymore.
+     *
+     * @param source processor to copy
+     * @return a copy of the source processor
+     */
+    public ImageProcessor duplicate(ImageProcessor source){
+        if(!isPoolable(source))
+            return source.duplicate();
+
+        ImageProcessor target = acquire(source, source.getWidth(), source.getHeight());
+        System.arraycopy(source.getPixels(), 0, target.getPixels(), 0, source.getPixelCount());
+        target.setColorModel(source.getColorModel());
+        target.setMinAndMax(source.getMin(), source.getMax());
+        return target;
+    }
+
+    /**
+     * Give back a processor to the pool, so that its pixel buffer can be reused.
+     *
+     * @param ip processor to give back
+     */
+    public synchronized void release(ImageProcessor ip){
+        if(!isPoolable(ip))
+            return;
+
+        ip.resetRoi();
+        Deque<ImageProcessor> queue = buffers.computeIfAbsent(getKey(ip, ip.getWidth(), ip.getHeight()), k -> new ArrayDeque<>());
+        if(queue.size() < MAX_BUFFERS_PER_KEY)
+            queue.push(ip);
+    }
+
+    /**
+     * Get an empty 8-bit buffer, e.g. for a binary mask.
+     * The returned processor has to be given back with {@link #release(ImageProcessor)} once it is not used anymore.
+     *
+     * @param width width of the buffer
+     * @param height height of the buffer
+     * @return a 8-bit processor of the requested dimensions
+     */
+    public ImageProcessor createMask(int width, int height){
+        return acquire(new ByteProcessor(1, 1), width, height);
+    }
+
+    /**
+     * Log the usage of the pool of each worker thread since the last reset, and the overall hit rate
+     */
+    public static void logStatistics(){
+        long hits = 0;
+        long misses = 0;
+        synchronized (ALL_POOLS) {
+            for (ImageProcessorPool pool : ALL_POOLS) {
+                synchronized (pool) {
+                    if (pool.hits + pool.misses == 0)
+                        continue;
+                    IJLogger.info("Buffer pool", pool.workerName + " : hits : " + pool.hits + ", misses : " + pool.misses +
+                            ", hit rate : " + formatRate(pool.hits, pool.misses));
+                    hits += pool.hits;
+                    misses += pool.misses;
+                }
+            }
+        }
+        IJLogger.info("Buffer pool", "All workers : hits : " + hits + ", misses : " + misses + ", hit rate : " + formatRate(hits, misses));
+    }
+
+    /**
+     * Release the buffers of all the pools and reset the usage statistics
+     */
+    public static void clearAll(){
+        synchronized (ALL_POOLS) {
+            for (ImageProcessorPool pool : ALL_POOLS) {
+                synchronized (pool) {
+                    pool.buffers.clear();
+                    pool.hits = 0;
+                    pool.misses = 0;
+                }
+            }
+        }
+    }
+
+    private static String formatRate(long hits, long misses){
+        long total = hits + misses;
+        return String.format("%.1f", total == 0 ? 0 : 100.0 * hits / total) + " %";
+    }
+
+    /**
+     * Get a buffer with the same type as the source from the pool, or create a new one if none is available.
+     *
+     * @param source reference processor for the bit depth
+     * @param width width of the buffer
+     * @param height height of the buffer
+     * @return a processor of the requested dimensions
+     */
+    private synchronized ImageProcessor acquire(ImageProcessor source, int width, int height){
+        Deque<ImageProcessor> queue = this.buffers.get(getKey(source, width, height));
+        if(queue != null && !queue.isEmpty()){
+            this.hits++;
+            return queue.pop();
+        }
+        this.misses++;
+        return source.createProcessor(width, height);
+    }
+
+    /**
+     * Only grayscale processors are pooled ; other types are simply duplicated
+     *
+     * @param ip processor to test
+     * @return true if the processor can be handled by the pool
+     */
+    private static boolean isPoolable(ImageProcessor ip){
+        return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor;
+    }
+
+    private static String getKey(ImageProcessor ip, int width, int height){
+        return width + "x" + height + "_" + ip.getBitDepth();
+    }
+}
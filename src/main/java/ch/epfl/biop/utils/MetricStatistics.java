@@ -0,0 +1,238 @@
+package ch.epfl.biop.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single-pass statistics accumulator of a metric.
+ * <p>
+ * Moments are updated with the Welford algorithm and quantiles are estimated with a merging t-digest :
+ * values are grouped in weighted centroids, which are small in the tails and larger in the middle of the
+ * distribution. As long as fewer values than the compression factor are added, each value keeps its own centroid
+ * and quantiles are exact.
+ * <p>
+ * As with a plain sum, a NaN value propagates : all the statistics are then NaN.
+ */
+public class MetricStatistics {
+    final private static int DEFAULT_COMPRESSION = 100;
+
+    final private int compression;
+
+    // moments
+    private long count = 0;
+    private boolean hasNaN = false;
+    private double mean = 0;
+    private double m2 = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    // quantile sketch
+    private double[] centroidMeans;
+    private double[] centroidWeights;
+    private int nCentroids = 0;
+    final private double[] buffer;
+    private int nBuffered = 0;
+
+    public MetricStatistics(){
+        this(DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param compression maximal number of centroids kept in the quantile sketch
+     */
+    public MetricStatistics(int compression){
+        this.compression = Math.max(10, compression);
+        this.centroidMeans = new double[2 * this.compression];
+        this.centroidWeights = new double[2 * this.compression];
+        this.buffer = new double[5 * this.compression];
+    }
+
+    /**
+     * @param values
+     * @return the statistics of a list of values
+     */
+    public static MetricStatistics of(List<Double> values){
+        MetricStatistics statistics = new MetricStatistics();
+        for(Double value : values)
+            statistics.add(value);
+        return statistics;
+    }
+
+    /**
+     * add a value to the statistics
+     * @param value
+     */
+    public void add(double value){
+        if(Double.isNaN(value)) {
+            this.hasNaN = true;
+            return;
+        }
+
+        // Welford update
+        this.count++;
+        double delta = value - this.mean;
+        this.mean += delta / this.count;
+        this.m2 += delta * (value - this.mean);
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+
+        // sketch update
+        if(this.nBuffered == this.buffer.length)
+            compress();
+        this.buffer[this.nBuffered++] = value;
+    }
+
+    /**
+     * @return the number of values, NaN values excluded
+     */
+    public long getCount(){ return this.count; }
+
+    /**
+     * @return the average value, 0 if empty
+     */
+    public double getMean(){ return this.hasNaN ? Double.NaN : this.mean; }
+
+    /**
+     * @return the population standard deviation, 0 if empty
+     */
+    public double getStd(){ return this.hasNaN ? Double.NaN : this.count == 0 ? 0 : Math.sqrt(this.m2 / this.count); }
+
+    /**
+     * @return the minimum value, 0 if empty
+     */
+    public double getMin(){ return this.hasNaN ? Double.NaN : this.count == 0 ? 0 : this.min; }
+
+    /**
+     * @return the maximum value, 0 if empty
+     */
+    public double getMax(){ return this.hasNaN ? Double.NaN : this.count == 0 ? 0 : this.max; }
+
+    /**
+     * @return the median value, 0 if empty
+     */
+    public double getMedian(){ return getQuantile(0.5); }
+
+    /**
+     * Estimate a quantile, with linear interpolation between values.
+     *
+     * @param q quantile between 0 and 1
+     * @return the estimated quantile, 0 if empty
+     */
+    public double getQuantile(double q){
+        if(this.hasNaN)
+            return Double.NaN;
+        if(this.count == 0)
+            return 0;
+        compress();
+
+        q = Math.max(0, Math.min(1, q));
+        if(this.nCentroids == 1)
+            return this.centroidMeans[0];
+
+        // rank of the quantile, between 0 and count-1
+        double rank = q * (this.count - 1);
+
+        // each centroid is located at the middle rank of the values it contains
+        double previousRank = 0;
+        double previousMean = this.min;
+        double cumulativeWeight = 0;
+        for(int i = 0; i < this.nCentroids; i++){
+            double centroidRank = cumulativeWeight + (this.centroidWeights[i] - 1) / 2;
+            if(rank <= centroidRank){
+                if(centroidRank == previousRank)
+                    return this.centroidMeans[i];
+                double t = (rank - previousRank) / (centroidRank - previousRank);
+                return previousMean + t * (this.centroidMeans[i] - previousMean);
+            }
+            previousRank = centroidRank;
+            previousMean = this.centroidMeans[i];
+            cumulativeWeight += this.centroidWeights[i];
+        }
+
+        // between the last centroid and the maximum value
+        double lastRank = this.count - 1;
+        if(lastRank == previousRank)
+            return this.max;
+        double t = (rank - previousRank) / (lastRank - previousRank);
+        return previousMean + t * (this.max - previousMean);
+    }
+
+    /**
+     * merge the buffered values into the centroids
+     */
+    private void compress(){
+        if(this.nBuffered == 0)
+            return;
+
+        int n = this.nCentroids + this.nBuffered;
+        double[] means = Arrays.copyOf(this.centroidMeans, n);
+        double[] weights = Arrays.copyOf(this.centroidWeights, n);
+        System.arraycopy(this.buffer, 0, means, this.nCentroids, this.nBuffered);
+        Arrays.fill(weights, this.nCentroids, n, 1);
+        this.nBuffered = 0;
+        mergeCentroids(means, weights, n);
+    }
+
+    /**
+     * sort weighted values and merge neighbours as long as the size limit of the t-digest allows it
+     *
+     * @param means centroid means
+     * @param weights centroid weights
+     * @param n number of centroids to merge
+     */
+    private void mergeCentroids(double[] means, double[] weights, int n){
+        // sort centroids by mean
+        Integer[] order = new Integer[n];
+        for(int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(means[a], means[b]));
+
+        double totalWeight = 0;
+        for(int i = 0; i < n; i++)
+            totalWeight += weights[i];
+
+        double[] newMeans = new double[Math.max(n, 2 * this.compression)];
+        double[] newWeights = new double[newMeans.length];
+        int nNew = 0;
+        double weightSoFar = 0;
+        double currentMean = means[order[0]];
+        double currentWeight = weights[order[0]];
+        double kLeft = scale(0);
+
+        for(int i = 1; i < n; i++){
+            double mean = means[order[i]];
+            double weight = weights[order[i]];
+            double kRight = scale((weightSoFar + currentWeight + weight) / totalWeight);
+
+            if(kRight - kLeft <= 1){
+                // absorb the value into the current centroid
+                currentWeight += weight;
+                currentMean += (mean - currentMean) * weight / currentWeight;
+            } else {
+                // close the current centroid
+                newMeans[nNew] = currentMean;
+                newWeights[nNew++] = currentWeight;
+                weightSoFar += currentWeight;
+                kLeft = scale(weightSoFar / totalWeight);
+                currentMean = mean;
+                currentWeight = weight;
+            }
+        }
+        newMeans[nNew] = currentMean;
+        newWeights[nNew++] = currentWeight;
+
+        this.centroidMeans = newMeans;
+        this.centroidWeights = newWeights;
+        this.nCentroids = nNew;
+    }
+
+    /**
+     * t-digest scale function : centroids are smaller close to the extreme quantiles
+     *
+     * @param q quantile
+     * @return the scaled quantile
+     */
+    private double scale(double q){
+        return this.compression * (Math.asin(2 * Math.min(1, q) - 1) / Math.PI + 0.5);
+    }
+}
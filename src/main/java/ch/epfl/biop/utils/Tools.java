@@ -4,9 +4,10 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 
+import java.awt.Rectangle;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -19,7 +20,6 @@ import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class Tools {
@@ -40,6 +40,11 @@ public class Tools {
     final public static String FULL_FOV = "fullFoV";
     final public static String PARTIAL_FOV = "partialFoV";
 
+    // focus is scored on a central tile only, to avoid reading full z-stacks
+    final public static int FOCUS_TILE_SIZE = 512;
+    // prefix of the image property holding the focus plane of each channel, when it is selected while downloading
+    final public static String FOCUS_PLANE_PROPERTY = "Focus_plane_ch";
+
     /**
      * Generate the current date and hour in the format aaaammdd-hhHmmMss
      * @return
@@ -123,28 +128,14 @@ public class Tools {
     }
 
     /**
-     * Compute the mean, max, min and std of a series of values
+     * Compute the mean, max, min and std of a series of values, in a single pass
      *
      * @param values
      * @return
      */
     public static double[] computeStatistics(List<Double> values){
-        if(values.isEmpty())
-            return new double[]{0, 0, 0, 0};
-        // average value
-        double average = values.stream().reduce(0.0, Double::sum) / values.size();
-
-        // std value
-        List<Double> stdList = new ArrayList<>();
-        values.forEach(e->stdList.add(Math.pow(e - average,2)));
-        double std = Math.sqrt(stdList.stream().reduce(0.0, Double::sum)/values.size());
-
-        // min value
-        double min = values.stream().min(Comparator.naturalOrder()).get();
-        // max value
-        double max = values.stream().max(Comparator.naturalOrder()).get();
-
-        return new double[]{average, std, min, max};
+        MetricStatistics statistics = MetricStatistics.of(values);
+        return new double[]{statistics.getMean(), statistics.getStd(), statistics.getMin(), statistics.getMax()};
     }
 
     /**
@@ -205,8 +196,47 @@ public class Tools {
         return heatMapScaledImp;
     }
 
+    /**
+     * @param width image width
+     * @param height image height
+     * @return the central tile of the image used to score the focus
+     */
+    public static Rectangle getFocusRegion(int width, int height){
+        int tileWidth = Math.min(width, FOCUS_TILE_SIZE);
+        int tileHeight = Math.min(height, FOCUS_TILE_SIZE);
+        return new Rectangle((width - tileWidth) / 2, (height - tileHeight) / 2, tileWidth, tileHeight);
+    }
+
+    /**
+     * compute the normalized variance (variance / mean) of an image within a rectangle, in one pass over the pixels.
+     * It is used as focus metric.
+     *
+     * @param ip
+     * @param region
+     * @return the focus score of the region
+     */
+    public static double computeNormalizedVariance(ImageProcessor ip, Rectangle region){
+        int width = ip.getWidth();
+        long nPixels = (long) region.width * region.height;
+        double sum = 0;
+        double sumSquares = 0;
+        for(int y = region.y; y < region.y + region.height; y++){
+            for(int x = region.x; x < region.x + region.width; x++){
+                double value = ip.getf(y * width + x);
+                sum += value;
+                sumSquares += value * value;
+            }
+        }
+
+        double mean = sum / nPixels;
+        if(mean <= 0)
+            return 0;
+        return (sumSquares / nPixels - mean * mean) / mean;
+    }
+
     /**
      * compute the Pearson Correlation Coefficient between two images, given a list of regions where to compute it.
+     * The PCC is computed directly on the pixels within the ROIs' bounding boxes, without copying them.
      *
      * @param imp1
      * @param imp2
@@ -214,72 +244,65 @@ public class Tools {
      * @return
      */
     public static List<Double> computePCC(ImagePlus imp1, ImagePlus imp2, List<Roi> rois){
-        List<ImagePlus> imp1Crops = new ArrayList<>();
-        List<ImagePlus> imp2Crops = new ArrayList<>();
-
-        // crop images with ROIs' bounding boxes
-        rois.forEach(roi->{
-            imp1.setRoi(roi);
-            imp1Crops.add(imp1.crop());
-            imp2.setRoi(roi);
-            imp2Crops.add(imp2.crop());
-        });
-
-        return computePCC(imp1Crops, imp2Crops);
-    }
+        ImageProcessor ip1 = imp1.getProcessor();
+        ImageProcessor ip2 = imp2.getProcessor();
+        List<Double> pccList = new ArrayList<>();
 
-    /**
-     * compute the Pearson Correlation Coefficient between two lists of images.
-     * One PCC is computed for each pair of images ==> lists must have the same length.
-     *
-     * @param impList1
-     * @param impList2
-     * @return
-     */
-    private static List<Double> computePCC(List<ImagePlus> impList1, List<ImagePlus> impList2){
-        // check lists' length
-        if(impList1.size() != impList2.size()) {
-            IJLogger.error("computePCC","Images lists do not have the same size :  "+impList1.size()+" vs " +impList2.size());
-            return new ArrayList<>();
+        // check image dimensions
+        if(ip1.getWidth() != ip2.getWidth() || ip1.getHeight() != ip2.getHeight()) {
+            IJLogger.error("computePCC","Images do not have the same dimensions ; w x h : "+ip1.getWidth()+" x " +ip1.getHeight() +" and " + ip2.getWidth()+" x "+ip2.getHeight());
+            rois.forEach(roi -> pccList.add(Double.NaN));
+            return pccList;
         }
 
-        // for each patch, compute PCC
-        List<Double> pccList = new ArrayList<>();
-        for(int i = 0; i < impList1.size(); i++)
-            pccList.add(computePCC(impList1.get(i),impList2.get(i)));
+        // compute PCC for each pair of patches defined by the ROIs' bounding boxes
+        Rectangle imageBounds = new Rectangle(0, 0, ip1.getWidth(), ip1.getHeight());
+        for(Roi roi : rois){
+            pccList.add(computePCC(ip1, ip2, roi.getBounds().intersection(imageBounds)));
+        }
 
         return pccList;
     }
 
 
     /**
-     * compute the Pearson Correlation Coefficient between two images.
+     * compute the Pearson Correlation Coefficient between two images within a rectangle, in a single pass.
      * Images must have the same dimensions.
      *
-     * @param imp1
-     * @param imp2
+     * @param ip1
+     * @param ip2
+     * @param bounds
      * @return
      */
-    private static double computePCC(ImagePlus imp1, ImagePlus imp2){
-        // check image dimensions
-        if(imp1.getWidth() != imp2.getWidth() || imp1.getHeight() != imp2.getHeight()) {
-            IJLogger.error("computePCC","Image patches do not have the same dimensions ; w x h : "+imp1.getWidth()+" x " +imp1.getHeight() +" and " + imp2.getWidth()+" x "+imp2.getHeight());
-            return Double.NaN;
-        }
-
-        List<Float> array1 = new ArrayList<>();
-        List<Float> array2 = new ArrayList<>();
-
-        // get raw pixel values
-        for(int k = 0; k < imp1.getWidth(); k++){
-            for (int l = 0; l < imp1.getHeight(); l++){
-                array1.add(imp1.getProcessor().getPixelValue(k, l));
-                array2.add(imp2.getProcessor().getPixelValue(k, l));
+    private static double computePCC(ImageProcessor ip1, ImageProcessor ip2, Rectangle bounds){
+        int width = ip1.getWidth();
+        long n = 0;
+        double mean1 = 0;
+        double mean2 = 0;
+        double var1 = 0;
+        double var2 = 0;
+        double cov = 0;
+
+        // running means and co-moments
+        for(int y = bounds.y; y < bounds.y + bounds.height; y++){
+            for(int x = bounds.x; x < bounds.x + bounds.width; x++){
+                int index = y * width + x;
+                double value1 = ip1.getf(index);
+                double value2 = ip2.getf(index);
+                n++;
+                double delta1 = value1 - mean1;
+                double delta2 = value2 - mean2;
+                mean1 += delta1 / n;
+                mean2 += delta2 / n;
+                var1 += delta1 * (value1 - mean1);
+                var2 += delta2 * (value2 - mean2);
+                cov += delta1 * (value2 - mean2);
             }
         }
 
-        // compute PCC
-        PearsonsCorrelation pcc = new PearsonsCorrelation();
-        return pcc.correlation(array1.stream().mapToDouble(Float::floatValue).toArray(), array2.stream().mapToDouble(Float::floatValue).toArray());
+        if(n < 2 || var1 == 0 || var2 == 0)
+            return Double.NaN;
+
+        return cov / Math.sqrt(var1 * var2);
     }
 }
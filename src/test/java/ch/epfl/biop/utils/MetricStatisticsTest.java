@@ -0,0 +1,100 @@
+package ch.epfl.biop.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricStatisticsTest {
+
+    /**
+     * below the compression factor, each value keeps its own centroid and quantiles are exact
+     */
+    @Test
+    public void quantilesAreExactForFewValues(){
+        List<Double> values = new ArrayList<>();
+        for(int i = 1; i <= 99; i++)
+            values.add((double) i);
+        Collections.shuffle(values, new Random(42));
+
+        MetricStatistics stats = MetricStatistics.of(values);
+        assertEquals(50, stats.getMedian(), 1e-9);
+        assertEquals(1, stats.getQuantile(0), 1e-9);
+        assertEquals(99, stats.getQuantile(1), 1e-9);
+        // rank 0.05 * 98 = 4.9, between the 5th and 6th values
+        assertEquals(5.9, stats.getQuantile(0.05), 1e-9);
+        assertEquals(94.1, stats.getQuantile(0.95), 1e-9);
+    }
+
+    /**
+     * above the compression factor, quantiles are estimated, more precisely in the tails
+     */
+    @Test
+    public void quantilesAreAccurateForManyValues(){
+        int n = 100000;
+        List<Double> values = new ArrayList<>();
+        for(int i = 0; i < n; i++)
+            values.add((double) i);
+        Collections.shuffle(values, new Random(42));
+
+        MetricStatistics stats = MetricStatistics.of(values);
+        for(double q : new double[]{0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99}){
+            double expected = q * (n - 1);
+            assertEquals("quantile " + q, expected, stats.getQuantile(q), 0.01 * n);
+        }
+        assertEquals(0, stats.getQuantile(0), 1e-9);
+        assertEquals(n - 1, stats.getQuantile(1), 1e-9);
+    }
+
+    @Test
+    public void quantilesAreMonotonic(){
+        Random random = new Random(7);
+        MetricStatistics stats = new MetricStatistics();
+        for(int i = 0; i < 10000; i++)
+            stats.add(random.nextGaussian());
+
+        double previous = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i <= 100; i++){
+            double quantile = stats.getQuantile(i / 100.0);
+            assertTrue("quantile " + i / 100.0, quantile >= previous);
+            previous = quantile;
+        }
+    }
+
+    @Test
+    public void momentsMatchTwoPassComputation(){
+        List<Double> values = Arrays.asList(2.0, 4.0, 4.0, 4.0, 5.0, 5.0, 7.0, 9.0);
+        MetricStatistics stats = MetricStatistics.of(values);
+        assertEquals(8, stats.getCount());
+        assertEquals(5, stats.getMean(), 1e-9);
+        assertEquals(2, stats.getStd(), 1e-9);
+        assertEquals(2, stats.getMin(), 1e-9);
+        assertEquals(9, stats.getMax(), 1e-9);
+        assertEquals(4.5, stats.getMedian(), 1e-9);
+    }
+
+    @Test
+    public void nanValuesPropagate(){
+        MetricStatistics stats = MetricStatistics.of(Arrays.asList(1.0, Double.NaN, 3.0));
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertTrue(Double.isNaN(stats.getStd()));
+        assertTrue(Double.isNaN(stats.getMin()));
+        assertTrue(Double.isNaN(stats.getMax()));
+        assertTrue(Double.isNaN(stats.getMedian()));
+    }
+
+    @Test
+    public void emptyStatisticsAreZero(){
+        MetricStatistics stats = new MetricStatistics();
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getMean(), 0);
+        assertEquals(0, stats.getStd(), 0);
+        assertEquals(0, stats.getMedian(), 0);
+    }
+}